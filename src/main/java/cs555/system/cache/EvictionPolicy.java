@@ -0,0 +1,60 @@
+package cs555.system.cache;
+
+import java.nio.file.Path;
+
+/**
+ * Decides which file an ObjectCache evicts when it is over budget. Policies
+ * are only told about accesses and changes to the cache's contents; the
+ * cache itself holds the content and accounts for its size. Calls are made
+ * with the cache's lock held, so policies don't need their own.
+ *
+ * @author hayne
+ */
+public interface EvictionPolicy {
+
+  /**
+   * Records a lookup of a file.
+   *
+   * @param path of the file
+   * @param hit true if the file was in the cache
+   */
+  void onAccess(Path path, boolean hit);
+
+  /**
+   * Records that a file was added to the cache.
+   *
+   * @param path of the file
+   * @param size bytes of content
+   */
+  void onInsert(Path path, long size);
+
+  /**
+   * Records that a file left the cache, by eviction or invalidation.
+   *
+   * @param path of the file
+   */
+  void onRemove(Path path);
+
+  /**
+   * Chooses the next file to evict. This may be the file that was just
+   * inserted, which is how a policy rejects a newcomer.
+   *
+   * @return path of the file to evict, null if the cache is empty
+   */
+  Path victim();
+
+  /**
+   * Creates a policy from its name.
+   *
+   * @param name 'lru', 'lfu' or 'tinylfu'
+   * @param capacity byte budget of the cache the policy is for
+   * @return eviction policy, TinyLfuPolicy if the name isn't recognized
+   */
+  static EvictionPolicy forName(String name, long capacity) {
+    return switch (name.toLowerCase()) {
+      case "lru" -> new LruPolicy();
+      case "lfu" -> new LfuPolicy();
+      default -> new TinyLfuPolicy(capacity);
+    };
+  }
+}
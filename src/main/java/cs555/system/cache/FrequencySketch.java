@@ -0,0 +1,83 @@
+package cs555.system.cache;
+
+/**
+ * Count-min sketch of access frequencies, used by TinyLfuPolicy to remember
+ * how popular files are, including files that aren't cached, in a fixed
+ * amount of memory. Counters saturate at 15, and every counter is halved
+ * once the sketch has recorded ten accesses per column, so that files which
+ * were popular long ago fade out.
+ *
+ * @author hayne
+ */
+public class FrequencySketch {
+
+  private static final int DEPTH = 4;
+  private static final int MAX_COUNT = 15;
+  private static final int[] SEEDS =
+      { 0x9e3779b9, 0x85ebca6b, 0xc2b2ae35, 0x27d4eb2f };
+  private final byte[][] counters;
+  private final int mask;
+  private final int sampleSize;
+  private int additions;
+
+  /**
+   * Default constructor.
+   *
+   * @param width counters per row, rounded up to a power of two
+   */
+  public FrequencySketch(int width) {
+    int columns = Integer.highestOneBit(Math.max(16, width - 1) << 1);
+    this.counters = new byte[DEPTH][columns];
+    this.mask = columns - 1;
+    this.sampleSize = 10*columns;
+  }
+
+  /**
+   * Records one access of an item.
+   *
+   * @param item accessed
+   */
+  public void increment(Object item) {
+    int hash = item.hashCode();
+    boolean added = false;
+    for (int row = 0; row < DEPTH; ++row) {
+      int column = index(hash, row);
+      if (counters[row][column] < MAX_COUNT) {
+        counters[row][column]++;
+        added = true;
+      }
+    }
+    if (added && ++additions >= sampleSize) {
+      age();
+    }
+  }
+
+  /**
+   * Returns the estimated number of recent accesses of an item.
+   *
+   * @param item to estimate
+   * @return estimated frequency, never less than the true count
+   */
+  public int frequency(Object item) {
+    int hash = item.hashCode();
+    int frequency = MAX_COUNT;
+    for (int row = 0; row < DEPTH; ++row) {
+      frequency = Math.min(frequency, counters[row][index(hash, row)]);
+    }
+    return frequency;
+  }
+
+  private int index(int hash, int row) {
+    int h = (hash ^ SEEDS[row])*0x45d9f3b;
+    return (h ^ (h >>> 16))&mask;
+  }
+
+  private void age() {
+    for (byte[] row : counters) {
+      for (int i = 0; i < row.length; ++i) {
+        row[i] >>= 1;
+      }
+    }
+    additions /= 2;
+  }
+}
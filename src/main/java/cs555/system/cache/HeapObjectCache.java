@@ -0,0 +1,137 @@
+package cs555.system.cache;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ObjectCache which keeps file contents as byte arrays on the heap. Every
+ * operation takes the cache's lock, which is only held long enough to update
+ * the map and the eviction policy; content is copied in before the lock is
+ * taken, and callers read cached content through a read-only buffer.
+ *
+ * @author hayne
+ */
+public class HeapObjectCache implements ObjectCache {
+
+  private final long capacity;
+  private final EvictionPolicy policy;
+  private final Map<Path,byte[]> entries;
+  private long size;
+  private final AtomicLong hits;
+  private final AtomicLong misses;
+  private final AtomicLong evictions;
+  private final AtomicLong rejections;
+
+  /**
+   * Default constructor.
+   *
+   * @param capacity most bytes of content to cache, zero to disable
+   * @param policy chooses which files to evict
+   */
+  public HeapObjectCache(long capacity, EvictionPolicy policy) {
+    this.capacity = capacity;
+    this.policy = policy;
+    this.entries = new HashMap<>();
+    this.size = 0;
+    this.hits = new AtomicLong(0);
+    this.misses = new AtomicLong(0);
+    this.evictions = new AtomicLong(0);
+    this.rejections = new AtomicLong(0);
+  }
+
+  @Override
+  public ByteBuffer get(Path path) {
+    if (capacity <= 0) {
+      return null;
+    }
+    byte[] content;
+    synchronized(this) {
+      content = entries.get(path);
+      policy.onAccess(path, content != null);
+    }
+    if (content == null) {
+      misses.incrementAndGet();
+      return null;
+    }
+    hits.incrementAndGet();
+    return ByteBuffer.wrap(content).asReadOnlyBuffer();
+  }
+
+  @Override
+  public boolean admits(long bytes) {
+    return bytes <= capacity/4;
+  }
+
+  /**
+   * {@inheritDoc} Files larger than a quarter of the cache are never kept,
+   * as one of them would flush most of the cache.
+   */
+  @Override
+  public void put(Path path, ByteBuffer content) {
+    if (!admits(content.remaining())) {
+      return;
+    }
+    byte[] copy = new byte[content.remaining()];
+    content.duplicate().get(copy);
+    synchronized(this) {
+      if (entries.containsKey(path)) {
+        return;
+      }
+      entries.put(path, copy);
+      size += copy.length;
+      policy.onInsert(path, copy.length);
+      while (size > capacity) {
+        Path victim = policy.victim();
+        if (victim == null) {
+          break;
+        }
+        if (victim.equals(path)) {
+          rejections.incrementAndGet();
+        } else {
+          evictions.incrementAndGet();
+        }
+        remove(victim);
+      }
+    }
+  }
+
+  @Override
+  public synchronized void invalidate(Path path) {
+    remove(path);
+  }
+
+  private void remove(Path path) {
+    byte[] content = entries.remove(path);
+    if (content != null) {
+      size -= content.length;
+      policy.onRemove(path);
+    }
+  }
+
+  @Override
+  public synchronized void clear() {
+    entries.keySet().forEach(policy::onRemove);
+    entries.clear();
+    size = 0;
+  }
+
+  @Override
+  public String getStatistics() {
+    long totalHits = hits.get();
+    long lookups = totalHits + misses.get();
+    int cached;
+    long bytes;
+    synchronized(this) {
+      cached = entries.size();
+      bytes = size;
+    }
+    return "cached " + cached + " (" + bytes + " of " + capacity + " bytes)" +
+           ", hits " + totalHits + ", misses " + misses.get() +
+           ", hit rate " + (lookups == 0 ? 0 : 100*totalHits/lookups) +
+           "%, evictions " + evictions.get() + ", rejected " +
+           rejections.get();
+  }
+}
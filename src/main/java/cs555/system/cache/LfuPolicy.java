@@ -0,0 +1,65 @@
+package cs555.system.cache;
+
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Evicts the least frequently used file, breaking ties by evicting the file
+ * which reached that frequency first. Files are grouped by frequency, so
+ * every operation takes logarithmic time in the number of distinct
+ * frequencies.
+ *
+ * @author hayne
+ */
+public class LfuPolicy implements EvictionPolicy {
+
+  private final Map<Path,Integer> frequencies = new HashMap<>();
+  private final TreeMap<Integer,LinkedHashSet<Path>> buckets = new TreeMap<>();
+
+  @Override
+  public void onAccess(Path path, boolean hit) {
+    Integer frequency = frequencies.get(path);
+    if (!hit || frequency == null) {
+      return;
+    }
+    unlink(path, frequency);
+    link(path, frequency + 1);
+  }
+
+  @Override
+  public void onInsert(Path path, long size) {
+    link(path, 1);
+  }
+
+  @Override
+  public void onRemove(Path path) {
+    Integer frequency = frequencies.remove(path);
+    if (frequency != null) {
+      unlink(path, frequency);
+    }
+  }
+
+  @Override
+  public Path victim() {
+    if (buckets.isEmpty()) {
+      return null;
+    }
+    return buckets.firstEntry().getValue().iterator().next();
+  }
+
+  private void link(Path path, int frequency) {
+    frequencies.put(path, frequency);
+    buckets.computeIfAbsent(frequency, k -> new LinkedHashSet<>()).add(path);
+  }
+
+  private void unlink(Path path, int frequency) {
+    LinkedHashSet<Path> bucket = buckets.get(frequency);
+    bucket.remove(path);
+    if (bucket.isEmpty()) {
+      buckets.remove(frequency);
+    }
+  }
+}
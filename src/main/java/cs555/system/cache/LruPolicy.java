@@ -0,0 +1,38 @@
+package cs555.system.cache;
+
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * Evicts the least recently used file.
+ *
+ * @author hayne
+ */
+public class LruPolicy implements EvictionPolicy {
+
+  private final LinkedHashSet<Path> order = new LinkedHashSet<>();
+
+  @Override
+  public void onAccess(Path path, boolean hit) {
+    if (hit && order.remove(path)) {
+      order.add(path);
+    }
+  }
+
+  @Override
+  public void onInsert(Path path, long size) {
+    order.add(path);
+  }
+
+  @Override
+  public void onRemove(Path path) {
+    order.remove(path);
+  }
+
+  @Override
+  public Path victim() {
+    Iterator<Path> iterator = order.iterator();
+    return iterator.hasNext() ? iterator.next() : null;
+  }
+}
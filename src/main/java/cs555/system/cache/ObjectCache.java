@@ -0,0 +1,82 @@
+package cs555.system.cache;
+
+import cs555.system.util.ApplicationProperties;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+/**
+ * Byte-budgeted cache of file contents, consulted by the FileSynchronizer
+ * before it goes to the storage engine.
+ *
+ * @author hayne
+ */
+public interface ObjectCache {
+
+  /**
+   * Returns the cached content of a file.
+   *
+   * @param path of the file
+   * @return read-only buffer over the content, which stays valid if the file
+   * is evicted, null if it isn't cached
+   */
+  ByteBuffer get(Path path);
+
+  /**
+   * Offers the content of a file to the cache. The cache copies the content,
+   * and may decline to keep it, or evict other files to make room.
+   *
+   * @param path of the file
+   * @param content of the file, which is left unchanged
+   */
+  void put(Path path, ByteBuffer content);
+
+  /**
+   * Checks if the cache would ever keep a file of a given size.
+   *
+   * @param bytes length of the file
+   * @return false if put() would always decline it
+   */
+  boolean admits(long bytes);
+
+  /**
+   * Drops a file from the cache, because it was deleted or moved.
+   *
+   * @param path of the file
+   */
+  void invalidate(Path path);
+
+  void clear();
+
+  /**
+   * Returns a one-line summary of the cache's use.
+   *
+   * @return statistics string
+   */
+  String getStatistics();
+
+  /**
+   * Creates the cache described by the cacheType, cacheBytes and cachePolicy
+   * properties.
+   *
+   * @return OffHeapObjectCache for 'offheap', otherwise a HeapObjectCache
+   */
+  static ObjectCache fromProperties() {
+    return withCapacity(ApplicationProperties.cacheBytes);
+  }
+
+  /**
+   * Like fromProperties(), but with a budget of its own.
+   *
+   * @param capacity most bytes of content to cache
+   * @return OffHeapObjectCache for 'offheap', otherwise a HeapObjectCache
+   */
+  static ObjectCache withCapacity(long capacity) {
+    EvictionPolicy policy =
+        EvictionPolicy.forName(ApplicationProperties.cachePolicy, capacity);
+    if (ApplicationProperties.cacheType.equalsIgnoreCase("offheap")) {
+      return new OffHeapObjectCache(capacity, policy);
+    }
+    return new HeapObjectCache(capacity, policy);
+  }
+}
@@ -0,0 +1,279 @@
+package cs555.system.cache;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * ObjectCache which keeps file contents outside of the Java heap, so that a
+ * large cache doesn't make garbage collection pauses any longer. Memory is
+ * allocated from the operating system in slabs of direct ByteBuffers, at
+ * most SLAB_BYTES each and no more than the cache's budget in total. Slabs
+ * are divided into PAGE_BYTES pages, and each file occupies a contiguous run
+ * of pages in one slab, found first-fit. When no run is large enough, files
+ * are evicted, as chosen by the eviction policy, until one is.
+ * <p>
+ * Pages are reused as soon as their file is evicted, so a hit copies the
+ * content out while holding the read lock, rather than handing out a view
+ * of memory which could be overwritten. The copy is short-lived, and the
+ * cached content itself never touches the heap.
+ *
+ * @author hayne
+ */
+public class OffHeapObjectCache implements ObjectCache {
+
+  private static final int PAGE_BYTES = 4096;
+  private static final int SLAB_BYTES = 16*1024*1024;
+  private final long capacityPages;
+  private final EvictionPolicy policy;
+  private final Map<Path,Allocation> entries;
+  private final List<Slab> slabs;
+  private final ReentrantReadWriteLock lock;
+  private long usedPages;
+  private final AtomicLong hits;
+  private final AtomicLong misses;
+  private final AtomicLong evictions;
+  private final AtomicLong rejections;
+
+  /**
+   * A slab of direct memory, and which of its pages are in use.
+   */
+  private static class Slab {
+    private final ByteBuffer memory;
+    private final BitSet used;
+    private final int pages;
+
+    private Slab(int pages) {
+      this.memory = ByteBuffer.allocateDirect(pages*PAGE_BYTES);
+      this.used = new BitSet(pages);
+      this.pages = pages;
+    }
+
+    /**
+     * Finds the first run of free pages long enough to hold a file.
+     *
+     * @param count pages needed
+     * @return first page of the run, -1 if there isn't one
+     */
+    private int findRun(int count) {
+      int start = used.nextClearBit(0);
+      while (start + count <= pages) {
+        int end = used.nextSetBit(start);
+        if (end < 0 || end - start >= count) {
+          return start;
+        }
+        start = used.nextClearBit(end);
+      }
+      return -1;
+    }
+  }
+
+  /**
+   * Where a cached file's content is kept.
+   *
+   * @param slab slab holding the content
+   * @param firstPage first page of the run
+   * @param pages length of the run
+   * @param length bytes of content
+   */
+  private record Allocation(Slab slab, int firstPage, int pages, int length) {}
+
+  /**
+   * Default constructor. No memory is allocated until files are cached.
+   *
+   * @param capacity most bytes of memory to allocate, zero to disable
+   * @param policy chooses which files to evict
+   */
+  public OffHeapObjectCache(long capacity, EvictionPolicy policy) {
+    this.capacityPages = capacity/PAGE_BYTES;
+    this.policy = policy;
+    this.entries = new HashMap<>();
+    this.slabs = new ArrayList<>();
+    this.lock = new ReentrantReadWriteLock();
+    this.usedPages = 0;
+    this.hits = new AtomicLong(0);
+    this.misses = new AtomicLong(0);
+    this.evictions = new AtomicLong(0);
+    this.rejections = new AtomicLong(0);
+  }
+
+  /**
+   * {@inheritDoc} The buffer is a heap copy of the cached content.
+   */
+  @Override
+  public ByteBuffer get(Path path) {
+    if (capacityPages <= 0) {
+      return null;
+    }
+    byte[] content = null;
+    lock.readLock().lock();
+    try {
+      Allocation allocation = entries.get(path);
+      if (allocation != null) {
+        content = new byte[allocation.length];
+        allocation.slab.memory.get(allocation.firstPage*PAGE_BYTES, content);
+      }
+      synchronized(policy) {
+        policy.onAccess(path, allocation != null);
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    if (content == null) {
+      misses.incrementAndGet();
+      return null;
+    }
+    hits.incrementAndGet();
+    return ByteBuffer.wrap(content).asReadOnlyBuffer();
+  }
+
+  @Override
+  public boolean admits(long bytes) {
+    long pages = Math.max(1, (bytes + PAGE_BYTES - 1)/PAGE_BYTES);
+    return pages <= capacityPages/4 && pages*PAGE_BYTES <= SLAB_BYTES;
+  }
+
+  /**
+   * {@inheritDoc} Files larger than a quarter of the cache, or than a slab,
+   * are never kept.
+   */
+  @Override
+  public void put(Path path, ByteBuffer content) {
+    int length = content.remaining();
+    int pages = Math.max(1, (length + PAGE_BYTES - 1)/PAGE_BYTES);
+    if (!admits(length)) {
+      return;
+    }
+    lock.writeLock().lock();
+    try {
+      if (entries.containsKey(path)) {
+        return;
+      }
+      policy.onInsert(path, (long) pages*PAGE_BYTES);
+      Allocation allocation;
+      while ((allocation = allocate(pages, length)) == null) {
+        Path victim = policy.victim();
+        if (victim == null || victim.equals(path)) {
+          policy.onRemove(path);
+          rejections.incrementAndGet();
+          return;
+        }
+        evictions.incrementAndGet();
+        remove(victim);
+      }
+      allocation.slab.memory.put(allocation.firstPage*PAGE_BYTES, content,
+          content.position(), length);
+      entries.put(path, allocation);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Finds a run of free pages, creating a new slab if none of the existing
+   * ones has room and the budget allows it. Callers must hold the write lock.
+   *
+   * @param pages length of the run
+   * @param length bytes of content the run will hold
+   * @return the allocation, null if files must be evicted first
+   */
+  private Allocation allocate(int pages, int length) {
+    if (usedPages + pages > capacityPages) {
+      return null;
+    }
+    Slab slab = null;
+    int firstPage = -1;
+    for (Slab candidate : slabs) {
+      if ((firstPage = candidate.findRun(pages)) >= 0) {
+        slab = candidate;
+        break;
+      }
+    }
+    if (slab == null) {
+      long allocatedPages = 0;
+      for (Slab existing : slabs) {
+        allocatedPages += existing.pages;
+      }
+      long remaining = capacityPages - allocatedPages;
+      if (remaining < pages) {
+        return null;
+      }
+      slab = new Slab((int) Math.min(SLAB_BYTES/PAGE_BYTES, remaining));
+      slabs.add(slab);
+      firstPage = 0;
+    }
+    slab.used.set(firstPage, firstPage + pages);
+    usedPages += pages;
+    return new Allocation(slab, firstPage, pages, length);
+  }
+
+  @Override
+  public void invalidate(Path path) {
+    lock.writeLock().lock();
+    try {
+      remove(path);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private void remove(Path path) {
+    Allocation allocation = entries.remove(path);
+    if (allocation != null) {
+      allocation.slab.used.clear(allocation.firstPage,
+          allocation.firstPage + allocation.pages);
+      usedPages -= allocation.pages;
+      policy.onRemove(path);
+    }
+  }
+
+  /**
+   * {@inheritDoc} The slabs are released, to be freed by the garbage
+   * collector.
+   */
+  @Override
+  public void clear() {
+    lock.writeLock().lock();
+    try {
+      entries.keySet().forEach(policy::onRemove);
+      entries.clear();
+      slabs.clear();
+      usedPages = 0;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public String getStatistics() {
+    long totalHits = hits.get();
+    long lookups = totalHits + misses.get();
+    int cached;
+    long bytes = 0;
+    long pages;
+    int slabCount;
+    lock.readLock().lock();
+    try {
+      cached = entries.size();
+      for (Allocation allocation : entries.values()) {
+        bytes += allocation.length;
+      }
+      pages = usedPages;
+      slabCount = slabs.size();
+    } finally {
+      lock.readLock().unlock();
+    }
+    return "cached " + cached + " (" + bytes + " bytes in " + pages + " of " +
+           capacityPages + " pages, " + slabCount + " slabs off-heap)" +
+           ", hits " + totalHits + ", misses " + misses.get() +
+           ", hit rate " + (lookups == 0 ? 0 : 100*totalHits/lookups) +
+           "%, evictions " + evictions.get() + ", rejected " +
+           rejections.get();
+  }
+}
@@ -0,0 +1,235 @@
+package cs555.system.cache;
+
+import cs555.system.util.ApplicationProperties;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copies of popular files kept by peers on the routes toward their owners,
+ * as in PAST. RETRIEVEs for a key converge through the same last few hops,
+ * so once a file has been read routeCacheThreshold times, the peer serving
+ * it pushes a copy to the hop the RETRIEVE came through. That hop answers
+ * later RETRIEVEs itself, and pushes the copy one hop further back once it
+ * is popular there too, spreading the load outward from the owner.
+ * <p>
+ * Copies expire after routeCacheTtl seconds, so a peer which missed an
+ * invalidation can't serve stale content for long. Each peer also remembers
+ * where it pushed copies, so a DELETE can be chased along the same paths,
+ * but only for routeCacheTtl seconds, after which the copy has expired.
+ * Content is kept in an ObjectCache of routeCacheBytes, separate from the
+ * cache of the peer's own files.
+ *
+ * @author hayne
+ */
+public class RouteCache {
+
+  private final ObjectCache cache;
+  private final long ttl;
+  private final ConcurrentHashMap<String,Entry> entries;
+  private final ConcurrentHashMap<String,Map<String,Long>> pushes;
+  private final AtomicLong received;
+  private final AtomicLong served;
+  private final AtomicLong pushed;
+  private final AtomicLong expired;
+  private final AtomicLong lastSweep;
+
+  /**
+   * When a cached copy expires, and how often it has been served.
+   */
+  private static class Entry {
+    private final long expires;
+    private final AtomicInteger hits = new AtomicInteger(0);
+
+    private Entry(long expires) {
+      this.expires = expires;
+    }
+  }
+
+  public RouteCache() {
+    this.cache =
+        ObjectCache.withCapacity(ApplicationProperties.routeCacheBytes);
+    this.ttl = ApplicationProperties.routeCacheTtl*1_000_000_000L;
+    this.entries = new ConcurrentHashMap<>();
+    this.pushes = new ConcurrentHashMap<>();
+    this.received = new AtomicLong(0);
+    this.served = new AtomicLong(0);
+    this.pushed = new AtomicLong(0);
+    this.expired = new AtomicLong(0);
+    this.lastSweep = new AtomicLong(System.nanoTime());
+  }
+
+  public static boolean isEnabled() {
+    return ApplicationProperties.routeCacheBytes > 0 &&
+           ApplicationProperties.routeCacheTtl > 0;
+  }
+
+  /**
+   * Checks if a file has been read often enough to be pushed toward the
+   * peers routing requests for it.
+   *
+   * @param reads times the file has been served by this peer
+   * @return true if the file should be pushed
+   */
+  public static boolean isPopular(int reads) {
+    return isEnabled() && reads >= ApplicationProperties.routeCacheThreshold;
+  }
+
+  private static Path keyOf(String filename) {
+    return Paths.get(filename);
+  }
+
+  /**
+   * Keeps a copy of a file pushed by a peer closer to its owner.
+   *
+   * @param filename name of the file
+   * @param content of the file
+   */
+  public void put(String filename, byte[] content) {
+    entries.put(filename, new Entry(System.nanoTime() + ttl));
+    cache.invalidate(keyOf(filename));
+    cache.put(keyOf(filename), ByteBuffer.wrap(content));
+    received.incrementAndGet();
+  }
+
+  /**
+   * Returns the cached copy of a file, unless it has expired or been
+   * evicted.
+   *
+   * @param filename name of the file
+   * @return read-only buffer over the content, null if there's no copy
+   */
+  public ByteBuffer get(String filename) {
+    Entry entry = entries.get(filename);
+    if (entry == null) {
+      return null;
+    }
+    if (System.nanoTime() - entry.expires > 0) {
+      expired.incrementAndGet();
+      invalidate(filename);
+      return null;
+    }
+    ByteBuffer content = cache.get(keyOf(filename));
+    if (content == null) {
+      entries.remove(filename, entry);
+      return null;
+    }
+    entry.hits.incrementAndGet();
+    served.incrementAndGet();
+    return content;
+  }
+
+  /**
+   * Checks if a file is small enough to be kept by a route cache, so that
+   * pushing it isn't wasted.
+   *
+   * @param bytes length of the file
+   * @return true if the file could be cached
+   */
+  public boolean admits(long bytes) {
+    return cache.admits(bytes);
+  }
+
+  public boolean contains(String filename) {
+    return entries.containsKey(filename);
+  }
+
+  /**
+   * Returns the number of times a cached copy has been served.
+   *
+   * @param filename name of the file
+   * @return hits, zero if the file isn't cached
+   */
+  public int getHits(String filename) {
+    Entry entry = entries.get(filename);
+    return entry == null ? 0 : entry.hits.get();
+  }
+
+  public void invalidate(String filename) {
+    entries.remove(filename);
+    cache.invalidate(keyOf(filename));
+  }
+
+  /**
+   * Records that a file is being pushed to a peer, unless it was already
+   * pushed there within the last routeCacheTtl seconds.
+   *
+   * @param filename name of the file
+   * @param address of the peer to push to
+   * @return true if the file should be pushed
+   */
+  public boolean shouldPush(String filename, String address) {
+    long now = System.nanoTime();
+    sweep(now);
+    Map<String,Long> destinations =
+        pushes.computeIfAbsent(filename, k -> new ConcurrentHashMap<>());
+    Long previous = destinations.get(address);
+    if (previous != null && now - previous < ttl) {
+      return false;
+    }
+    destinations.put(address, now);
+    pushed.incrementAndGet();
+    return true;
+  }
+
+  /**
+   * Forgets pushes whose copies have expired, at most once per
+   * routeCacheTtl, so that files which are never deleted don't keep their
+   * destinations forever.
+   *
+   * @param now current time in nanoseconds
+   */
+  private void sweep(long now) {
+    long last = lastSweep.get();
+    if (now - last < ttl || !lastSweep.compareAndSet(last, now)) {
+      return;
+    }
+    for (Map.Entry<String,Map<String,Long>> entry : pushes.entrySet()) {
+      Map<String,Long> destinations = entry.getValue();
+      destinations.values().removeIf(time -> now - time >= ttl);
+      if (destinations.isEmpty()) {
+        pushes.remove(entry.getKey(), destinations);
+      }
+    }
+  }
+
+  /**
+   * Forgets, and returns, the peers a file was pushed to within the last
+   * routeCacheTtl, so they can be told to invalidate their copies.
+   *
+   * @param filename name of the file
+   * @return addresses of the peers
+   */
+  public Set<String> takePushes(String filename) {
+    Map<String,Long> destinations = pushes.remove(filename);
+    if (destinations == null) {
+      return Set.of();
+    }
+    long now = System.nanoTime();
+    destinations.values().removeIf(time -> now - time >= ttl);
+    return destinations.keySet();
+  }
+
+  public void clear() {
+    entries.clear();
+    pushes.clear();
+    cache.clear();
+  }
+
+  /**
+   * Returns a one-line summary of the route cache's use.
+   *
+   * @return statistics string
+   */
+  public String getStatistics() {
+    return "copies " + entries.size() + ", received " + received.get() +
+           ", served " + served.get() + ", pushed " + pushed.get() +
+           ", expired " + expired.get() + ", " + cache.getStatistics();
+  }
+}
@@ -0,0 +1,148 @@
+package cs555.system.cache;
+
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Window TinyLFU. New files enter a small LRU window, about 1% of the cache,
+ * so a burst of reads to a new file can still be served from memory. Files
+ * pushed out of the window only enter the main region if the frequency
+ * sketch says they are accessed more often than the main region's next
+ * victim. Files read once in a scan therefore can't flush the files which
+ * are read all of the time.
+ * <p>
+ * The main region is a segmented LRU. Files enter its probation segment, and
+ * move to the protected segment, at most 80% of the main region, if they are
+ * read again. Victims are taken from probation first. While the cache is
+ * still filling, files leaving the window go straight to probation.
+ *
+ * @author hayne
+ */
+public class TinyLfuPolicy implements EvictionPolicy {
+
+  private static final long AVERAGE_OBJECT = 4096; // bytes, to size sketch
+  private final FrequencySketch sketch;
+  private final long windowLimit;
+  private final long mainLimit;
+  private final long protectedLimit;
+  private final LinkedHashMap<Path,Long> window;
+  private final LinkedHashMap<Path,Long> probation;
+  private final LinkedHashMap<Path,Long> protect;
+  private long windowBytes;
+  private long probationBytes;
+  private long protectedBytes;
+
+  /**
+   * Default constructor.
+   *
+   * @param capacity byte budget of the cache
+   */
+  public TinyLfuPolicy(long capacity) {
+    long objects = Math.min(1 << 20, Math.max(1024, capacity/AVERAGE_OBJECT));
+    this.sketch = new FrequencySketch((int) objects);
+    this.windowLimit = Math.max(1, capacity/100);
+    this.mainLimit = capacity - windowLimit;
+    this.protectedLimit = mainLimit*4/5;
+    this.window = new LinkedHashMap<>(16, 0.75f, true);
+    this.probation = new LinkedHashMap<>(16, 0.75f, true);
+    this.protect = new LinkedHashMap<>(16, 0.75f, true);
+    this.windowBytes = 0;
+    this.probationBytes = 0;
+    this.protectedBytes = 0;
+  }
+
+  @Override
+  public void onAccess(Path path, boolean hit) {
+    sketch.increment(path);
+    if (!hit) {
+      return;
+    }
+    // Access-ordered maps move the entry to the tail on get()
+    if (window.get(path) != null || protect.get(path) != null) {
+      return;
+    }
+    Long size = probation.remove(path);
+    if (size != null) {
+      probationBytes -= size;
+      protect.put(path, size);
+      protectedBytes += size;
+      while (protectedBytes > protectedLimit && protect.size() > 1) {
+        Map.Entry<Path,Long> demoted = eldest(protect);
+        protect.remove(demoted.getKey());
+        protectedBytes -= demoted.getValue();
+        toProbation(demoted.getKey(), demoted.getValue());
+      }
+    }
+  }
+
+  @Override
+  public void onInsert(Path path, long size) {
+    window.put(path, size);
+    windowBytes += size;
+    while (windowBytes > windowLimit && window.size() > 1) {
+      Map.Entry<Path,Long> eldest = eldest(window);
+      if (probationBytes + protectedBytes + eldest.getValue() > mainLimit) {
+        break;
+      }
+      window.remove(eldest.getKey());
+      windowBytes -= eldest.getValue();
+      toProbation(eldest.getKey(), eldest.getValue());
+    }
+  }
+
+  @Override
+  public void onRemove(Path path) {
+    Long size = window.remove(path);
+    if (size != null) {
+      windowBytes -= size;
+    } else if ((size = protect.remove(path)) != null) {
+      protectedBytes -= size;
+    } else if ((size = probation.remove(path)) != null) {
+      probationBytes -= size;
+    }
+  }
+
+  @Override
+  public Path victim() {
+    while (windowBytes > windowLimit && !window.isEmpty()) {
+      Map.Entry<Path,Long> candidate = eldest(window);
+      Path mainVictim = mainVictim();
+      if (mainVictim == null ||
+          sketch.frequency(candidate.getKey()) > sketch.frequency(mainVictim)) {
+        // Admit the candidate to probation, then evict the main victim
+        window.remove(candidate.getKey());
+        windowBytes -= candidate.getValue();
+        toProbation(candidate.getKey(), candidate.getValue());
+        if (mainVictim != null) {
+          return mainVictim;
+        }
+      } else {
+        return candidate.getKey();
+      }
+    }
+    Path mainVictim = mainVictim();
+    if (mainVictim != null) {
+      return mainVictim;
+    }
+    return window.isEmpty() ? null : eldest(window).getKey();
+  }
+
+  private void toProbation(Path path, long size) {
+    probation.put(path, size);
+    probationBytes += size;
+  }
+
+  private Path mainVictim() {
+    if (!probation.isEmpty()) {
+      return eldest(probation).getKey();
+    }
+    return protect.isEmpty() ? null : eldest(protect).getKey();
+  }
+
+  private static Map.Entry<Path,Long> eldest(LinkedHashMap<Path,Long> map) {
+    Iterator<Map.Entry<Path,Long>> iterator = map.entrySet().iterator();
+    return iterator.next();
+  }
+}
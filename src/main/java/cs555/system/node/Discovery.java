@@ -148,13 +148,47 @@ public class Discovery implements Node {
   }
 
   /**
-   * Attempt to register the peer which has requested to register.
+   * Attempt to register the peer which has requested to register. A peer
+   * restarting with its previous identifier is usually still registered,
+   * as it never deregistered, so an existing registration at a different
+   * address is replaced if that address is no longer live. The existing
+   * registration is probed outside the monitor, so an unreachable address
+   * doesn't stall every other registration for the connect timeout.
    *
    * @param event message received by Discovery
    * @param connection TCPConnection from which the request was received
    */
-  private synchronized void register(Event event, TCPConnection connection) {
+  private void register(Event event, TCPConnection connection) {
     PeerInformation newPeer = ((PeerMessage) event).getPeer();
+    PeerInformation existing = getRegistration(newPeer);
+    if (existing != null && !isLive(existing)) { // restarted
+      removeRegistration(existing);
+    }
+    completeRegistration(newPeer, connection);
+  }
+
+  private synchronized PeerInformation getRegistration(PeerInformation peer) {
+    int index = registeredPeers.indexOf(peer);
+    return index >= 0 ? registeredPeers.get(index) : null;
+  }
+
+  /**
+   * Removes a registration found to be unreachable, unless it was replaced
+   * while it was being probed.
+   *
+   * @param stale registration which didn't answer
+   */
+  private synchronized void removeRegistration(PeerInformation stale) {
+    int index = registeredPeers.indexOf(stale);
+    if (index >= 0 && registeredPeers.get(index).getAddress()
+                                     .equals(stale.getAddress())) {
+      logger.info("Replacing unreachable peer: " + stale);
+      registeredPeers.remove(index);
+    }
+  }
+
+  private synchronized void completeRegistration(PeerInformation newPeer,
+      TCPConnection connection) {
     if (registeredPeers.contains(newPeer)) { // ID already exists
       GeneralMessage reply = new GeneralMessage(Protocol.ID_COLLISION);
       try {
@@ -220,7 +254,7 @@ public class Discovery implements Node {
    * @param peer to test for liveness
    * @return true if the peer is live, false if not
    */
-  private synchronized boolean isLive(PeerInformation peer) {
+  private boolean isLive(PeerInformation peer) {
     TCPConnection connection =
         TCPConnectionCache.establishConnection(this, peer.getAddress());
     if (connection != null) {
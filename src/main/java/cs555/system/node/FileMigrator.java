@@ -0,0 +1,372 @@
+package cs555.system.node;
+
+import cs555.system.transport.TCPConnectionCache;
+import cs555.system.util.ApplicationProperties;
+import cs555.system.util.FileSynchronizer;
+import cs555.system.util.Logger;
+import cs555.system.util.PeerInformation;
+import cs555.system.util.TokenBucket;
+import cs555.system.wireformats.BulkTransfer;
+
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Moves files from this peer to the peers which own them. Migration happens in
+ * two phases. First, the Peer routes a small MIGRATE lookup toward the file's
+ * key, and the owner answers directly with a MIGRATE_ACCEPT. Then, the file is
+ * queued for that owner. Queued files are packed into BulkTransfers, one
+ * destination at a time, and sent straight to the owner, so intermediate peers
+ * never handle file content. Local copies are only deleted once the owner
+ * acknowledges them.
+ * <p>
+ * Transfers run on the migrator's own thread, limited to migrationRate bytes
+ * per second by a TokenBucket. Foreground requests (client SEEKs and stores)
+ * take priority: while any are in progress, or have finished very recently,
+ * the migrator pauses before each BulkTransfer, for up to MAX_PAUSE at a
+ * time. Within a transfer, files are paced by the TokenBucket alone, so a
+ * steady stream of requests delays a rebalance per batch rather than per
+ * file.
+ *
+ * @author hayne
+ */
+public class FileMigrator {
+
+  private static final Logger logger = Logger.getInstance();
+  private static final long PENDING_TIMEOUT = 30_000_000_000L; // 30 seconds
+  private static final long FLUSH_DELAY = 50; // ms to gather more files
+  private static final long FOREGROUND_QUIET = 50_000_000L; // 50 ms
+  private static final long MAX_PAUSE = 2_000_000_000L; // 2 seconds
+  private final PeerInformation self;
+  private final FileSynchronizer files;
+  private final TCPConnectionCache connections;
+  private final Function<String,Path> pathResolver;
+  private final ConcurrentHashMap<Path,Long> pending;
+  private final ConcurrentHashMap<PeerInformation,Queue<Path>> outgoing;
+  private final ConcurrentHashMap<Path,PeerInformation> unacknowledged;
+  private final Set<PeerInformation> flushScheduled;
+  private final ScheduledExecutorService executor;
+  private final TokenBucket bucket;
+  private final AtomicInteger foreground;
+  private final AtomicLong lastForeground;
+  private final AtomicLong pausedNanos;
+  private final AtomicLong throttledNanos;
+  private volatile Handoff handoff;
+  private final AtomicLong filesSent;
+  private final AtomicLong bytesSent;
+  private final AtomicLong transfers;
+  private final AtomicLong filesAcknowledged;
+
+  /**
+   * Files being handed off while leaving. Each is either acknowledged, or
+   * moved to 'failed' as soon as its transfer fails, so the wait for
+   * acknowledgements ends as early as it can.
+   */
+  private static class Handoff {
+    private final Set<Path> outstanding = ConcurrentHashMap.newKeySet();
+    private final Set<Path> failed = ConcurrentHashMap.newKeySet();
+
+    private void finish(Path path, boolean success) {
+      if (outstanding.remove(path)) {
+        if (!success) {
+          failed.add(path);
+        }
+        synchronized(this) {
+          notifyAll();
+        }
+      }
+    }
+  }
+
+  /**
+   * Default constructor.
+   *
+   * @param self this peer
+   * @param files files stored at this peer
+   * @param connections cache used to reach owners
+   * @param pathResolver maps a filename to its local path
+   */
+  public FileMigrator(PeerInformation self, FileSynchronizer files,
+      TCPConnectionCache connections, Function<String,Path> pathResolver) {
+    this.self = self;
+    this.files = files;
+    this.connections = connections;
+    this.pathResolver = pathResolver;
+    this.pending = new ConcurrentHashMap<>();
+    this.outgoing = new ConcurrentHashMap<>();
+    this.unacknowledged = new ConcurrentHashMap<>();
+    this.flushScheduled = ConcurrentHashMap.newKeySet();
+    this.executor = Executors.newSingleThreadScheduledExecutor();
+    long rate = ApplicationProperties.migrationRate;
+    this.bucket = new TokenBucket(rate, rate);
+    this.foreground = new AtomicInteger(0);
+    this.lastForeground = new AtomicLong(0);
+    this.pausedNanos = new AtomicLong(0);
+    this.throttledNanos = new AtomicLong(0);
+    this.filesSent = new AtomicLong(0);
+    this.bytesSent = new AtomicLong(0);
+    this.transfers = new AtomicLong(0);
+    this.filesAcknowledged = new AtomicLong(0);
+  }
+
+  /**
+   * Marks a file as being migrated, so repeated migration passes don't look
+   * it up again. Marks expire after PENDING_TIMEOUT, in case the lookup, the
+   * transfer, or its acknowledgement was lost.
+   *
+   * @param path of the file being migrated
+   * @return true if the file was marked, false if it was already pending
+   */
+  public boolean markPending(Path path) {
+    long now = System.nanoTime();
+    Long previous = pending.get(path);
+    if (previous != null && now - previous < PENDING_TIMEOUT) {
+      return false;
+    }
+    pending.put(path, now);
+    unacknowledged.remove(path);
+    return true;
+  }
+
+  public void clearPending(Path path) {
+    pending.remove(path);
+  }
+
+  /**
+   * Queues files for transfer to the peer which accepted them. Files queued
+   * for the same destination within FLUSH_DELAY are sent together.
+   *
+   * @param owner peer which accepted the files
+   * @param filenames files the owner accepted
+   */
+  public void transfer(PeerInformation owner, List<String> filenames) {
+    if (self.equals(owner)) {
+      return;
+    }
+    Queue<Path> queue =
+        outgoing.computeIfAbsent(owner, k -> new ConcurrentLinkedQueue<>());
+    for (String filename : filenames) {
+      queue.add(pathResolver.apply(filename));
+    }
+    if (flushScheduled.add(owner)) {
+      executor.schedule(() -> flush(owner), FLUSH_DELAY, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Called by the Peer when it starts handling a foreground request.
+   */
+  public void foregroundStarted() {
+    foreground.incrementAndGet();
+  }
+
+  /**
+   * Called by the Peer when it finishes handling a foreground request.
+   */
+  public void foregroundFinished() {
+    lastForeground.set(System.nanoTime());
+    foreground.decrementAndGet();
+  }
+
+  private boolean isForegroundBusy() {
+    return foreground.get() > 0 ||
+           System.nanoTime() - lastForeground.get() < FOREGROUND_QUIET;
+  }
+
+  /**
+   * Waits while foreground requests are being handled, for at most MAX_PAUSE,
+   * so migration can't be starved entirely by a steady stream of requests.
+   *
+   * @throws InterruptedException if interrupted while waiting
+   */
+  private void yieldToForeground() throws InterruptedException {
+    long start = System.nanoTime();
+    long waited = 0;
+    while (isForegroundBusy() && waited < MAX_PAUSE) {
+      TimeUnit.MILLISECONDS.sleep(10);
+      waited = System.nanoTime() - start;
+    }
+    pausedNanos.addAndGet(waited);
+  }
+
+  /**
+   * Sends everything queued for one destination, packed into BulkTransfers of
+   * at most migrationBatchBytes each.
+   *
+   * @param owner destination of the queued files
+   */
+  private void flush(PeerInformation owner) {
+    flushScheduled.remove(owner);
+    Queue<Path> queue = outgoing.get(owner);
+    if (queue != null) {
+      sendQueue(owner, queue, true);
+    }
+  }
+
+  /**
+   * Drains a queue of files, packing them into BulkTransfers of at most
+   * migrationBatchBytes each. Background sends yield to foreground requests
+   * before each batch and are rate limited; sends made while leaving the
+   * network are not.
+   *
+   * @param owner destination of the queued files
+   * @param queue files to send
+   * @param background true if the transfer should be throttled
+   */
+  private void sendQueue(PeerInformation owner, Queue<Path> queue,
+      boolean background) {
+    BulkTransfer transfer = new BulkTransfer(self);
+    long batchBytes = 0;
+    Path path;
+    while ((path = queue.poll()) != null) {
+      byte[] content = files.readFile(path);
+      if (content == null) { // deleted since it was queued
+        clearPending(path);
+        finishHandoff(path, true);
+        continue;
+      }
+      long limit = ApplicationProperties.migrationBatchBytes;
+      if (transfer.size() > 0 && batchBytes + content.length > limit) {
+        send(owner, transfer, batchBytes);
+        transfer = new BulkTransfer(self);
+        batchBytes = 0;
+      }
+      if (background) {
+        try {
+          // Yield once per batch, the bucket paces the files within it
+          if (transfer.size() == 0) {
+            yieldToForeground();
+          }
+          throttledNanos.addAndGet(bucket.acquire(content.length));
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+      transfer.addFile(path.getFileName().toString(), content);
+      batchBytes += content.length;
+    }
+    if (transfer.size() > 0) {
+      send(owner, transfer, batchBytes);
+    }
+  }
+
+  private void send(PeerInformation owner, BulkTransfer transfer,
+      long batchBytes) {
+    // Recorded before sending, as the ack can arrive before send() returns
+    for (String filename : transfer.getFilenames()) {
+      unacknowledged.put(pathResolver.apply(filename), owner);
+    }
+    if (connections.send(owner.getAddress(), transfer, false)) {
+      transfers.incrementAndGet();
+      filesSent.addAndGet(transfer.size());
+      bytesSent.addAndGet(batchBytes);
+      logger.debug(transfer.size() + " files (" + batchBytes + " bytes) sent " +
+                   "to " + owner.getIdentifier() + ".");
+    } else {
+      logger.debug("Transfer to " + owner.getIdentifier() + " failed.");
+      for (String filename : transfer.getFilenames()) {
+        Path path = pathResolver.apply(filename);
+        unacknowledged.remove(path, owner);
+        clearPending(path); // retry next pass
+        finishHandoff(path, false);
+      }
+    }
+  }
+
+  /**
+   * Handles a MIGRATE_ACK. Each acknowledged file is now held by the owner,
+   * so the local copy is deleted.
+   *
+   * @param owner peer which stored the files
+   * @param filenames files the owner acknowledged
+   */
+  public void acknowledge(PeerInformation owner, List<String> filenames) {
+    for (String filename : filenames) {
+      Path path = pathResolver.apply(filename);
+      if (unacknowledged.remove(path, owner)) {
+        files.deleteFile(path);
+        clearPending(path);
+        filesAcknowledged.incrementAndGet();
+        logger.info("File " + path + " was relocated to " +
+                    owner.getIdentifier() + " and deleted.");
+        finishHandoff(path, true);
+      }
+    }
+  }
+
+  private void finishHandoff(Path path, boolean success) {
+    Handoff current = handoff;
+    if (current != null) {
+      current.finish(path, success);
+    }
+  }
+
+  /**
+   * Hands files off to other peers before this peer leaves the network. Each
+   * destination's files are sent by one of at most 'concurrency' threads, and
+   * the call returns as soon as every file has been acknowledged or has
+   * failed to send, or when the timeout expires.
+   *
+   * @param assignments filenames to send to each destination
+   * @param concurrency most destinations to send to at once
+   * @param timeout milliseconds to wait for acknowledgements
+   * @return paths of files that weren't acknowledged
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public Set<Path> handoff(Map<PeerInformation,List<String>> assignments,
+      int concurrency, long timeout) throws InterruptedException {
+    Handoff current = new Handoff();
+    assignments.values().forEach(filenames -> filenames.forEach(
+        filename -> current.outstanding.add(pathResolver.apply(filename))));
+    handoff = current;
+
+    ExecutorService pool = Executors.newFixedThreadPool(concurrency);
+    assignments.forEach((owner, filenames) -> {
+      Queue<Path> queue = new ArrayDeque<>();
+      filenames.forEach(filename -> queue.add(pathResolver.apply(filename)));
+      pool.submit(() -> sendQueue(owner, queue, false));
+    });
+    pool.shutdown();
+
+    long deadline = System.currentTimeMillis() + timeout;
+    synchronized(current) {
+      long remaining;
+      while (!current.outstanding.isEmpty() &&
+             (remaining = deadline - System.currentTimeMillis()) > 0) {
+        current.wait(remaining);
+      }
+    }
+    pool.shutdownNow();
+    handoff = null;
+    Set<Path> unacknowledged = new HashSet<>(current.outstanding);
+    unacknowledged.addAll(current.failed);
+    return unacknowledged;
+  }
+
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * Returns a one-line summary of migration progress.
+   *
+   * @return statistics string
+   */
+  public String getStatistics() {
+    int queued = 0;
+    for (Queue<Path> queue : outgoing.values()) {
+      queued += queue.size();
+    }
+    return "transfers " + transfers.get() + ", files sent " + filesSent.get() +
+           ", bytes sent " + bytesSent.get() + ", acknowledged " +
+           filesAcknowledged.get() + ", awaiting ack " +
+           unacknowledged.size() + ", queued " + queued + ", paused " +
+           pausedNanos.get()/1_000_000 + " ms, throttled " +
+           throttledNanos.get()/1_000_000 + " ms";
+  }
+}
@@ -0,0 +1,310 @@
+package cs555.system.node;
+
+import cs555.system.util.ApplicationProperties;
+import cs555.system.util.ErasureManifest;
+import cs555.system.util.Logger;
+import cs555.system.util.PeerInformation;
+import cs555.system.wireformats.Event;
+import cs555.system.wireformats.RelayFile;
+import cs555.system.wireformats.SeekMessage;
+import cs555.system.wireformats.ServeFile;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Restores the lost fragments of erasure coded files this peer owns. Every
+ * erasureRepairInterval seconds, a CHECK is routed to each fragment of each
+ * owned manifest, and the fragment's owner answers whether it holds it. A
+ * fragment lost with its peer is answered for by whichever peer took over
+ * its key. If any are missing, and at least k are left, k of the remaining
+ * fragments are retrieved, and the missing ones are rebuilt from them and
+ * routed to their owners again.
+ * <p>
+ * Fragments aren't replicated, since the parity fragments already protect
+ * them, so this is what keeps a file from slowly losing fragments as peers
+ * come and go. Fragments are fetched with a FETCH rather than a RETRIEVE,
+ * so that repairs count as background work, like migrations, and don't
+ * hold migrations back. Peers which don't erasure code never check.
+ *
+ * @author hayne
+ */
+public class FragmentRepairer {
+
+  private static final Logger logger = Logger.getInstance();
+  public static final String CHECK = "CHECK";
+  public static final String FETCH = "FETCH";
+  private final PeerInformation self;
+  private final Supplier<Map<String,ErasureManifest>> manifests;
+  private final Consumer<Event> router;
+  private final ConcurrentHashMap<String,Repair> repairs;
+  private final ScheduledExecutorService scheduler;
+  private final long interval;
+  private final AtomicLong checked;
+  private final AtomicLong repaired;
+  private final AtomicLong unrecoverable;
+
+  /**
+   * Progress of checking, and possibly repairing, one file. Answers are
+   * collected first, then k fragments which were present are fetched.
+   */
+  private static class Repair {
+    private final ErasureManifest manifest;
+    private final long start = System.nanoTime();
+    private final Boolean[] held;
+    private final byte[][] fragments;
+    private int answered;
+    private int next;
+    private int received;
+    private boolean fetching;
+
+    private Repair(ErasureManifest manifest) {
+      this.manifest = manifest;
+      this.held = new Boolean[manifest.fragments()];
+      this.fragments = new byte[manifest.fragments()][];
+    }
+
+    /**
+     * Picks the next fragment, which its owner said it holds, to fetch.
+     * Callers must hold the repair's lock.
+     *
+     * @return index of the fragment, -1 if there are none left
+     */
+    private int nextHeld() {
+      while (next < held.length) {
+        int fragment = next++;
+        if (Boolean.TRUE.equals(held[fragment])) {
+          return fragment;
+        }
+      }
+      return -1;
+    }
+  }
+
+  /**
+   * Default constructor.
+   *
+   * @param self this peer
+   * @param manifests supplies the erasure manifests this peer owns
+   * @param router routes a message from this peer toward its key
+   */
+  public FragmentRepairer(PeerInformation self,
+      Supplier<Map<String,ErasureManifest>> manifests,
+      Consumer<Event> router) {
+    this.self = self;
+    this.manifests = manifests;
+    this.router = router;
+    this.repairs = new ConcurrentHashMap<>();
+    this.scheduler = Executors.newSingleThreadScheduledExecutor();
+    this.interval = ApplicationProperties.erasureRepairInterval;
+    this.checked = new AtomicLong(0);
+    this.repaired = new AtomicLong(0);
+    this.unrecoverable = new AtomicLong(0);
+  }
+
+  public void start() {
+    if (interval > 0 && ApplicationProperties.erasureDataFragments > 0) {
+      scheduler.scheduleWithFixedDelay(this::check, interval, interval,
+          TimeUnit.SECONDS);
+    }
+  }
+
+  /**
+   * Routes a CHECK to every fragment of every owned erasure coded file that
+   * isn't already being checked. Repairs which haven't finished within an
+   * interval, because answers were lost, are started over.
+   */
+  private void check() {
+    long timeout = interval*1_000_000_000L;
+    long now = System.nanoTime();
+    repairs.values().removeIf(repair -> now - repair.start > timeout);
+    for (Map.Entry<String,ErasureManifest> entry :
+        manifests.get().entrySet()) {
+      String filename = entry.getKey();
+      ErasureManifest manifest = entry.getValue();
+      if (repairs.putIfAbsent(filename, new Repair(manifest)) != null) {
+        continue;
+      }
+      checked.incrementAndGet();
+      for (int i = 0; i < manifest.fragments(); ++i) {
+        route(CHECK, ErasureManifest.fragmentName(filename, i));
+      }
+    }
+  }
+
+  private void route(String operation, String fragment) {
+    router.accept(new SeekMessage(operation,
+        StoreData.generateKeyFromFilename(fragment), fragment,
+        self.getAddress()));
+  }
+
+  /**
+   * Records the answer to a CHECK. Once every fragment has answered, k of
+   * those present are fetched if any are missing.
+   *
+   * @param fragment name of the fragment
+   * @param present true if its owner holds it
+   */
+  public void status(String fragment, boolean present) {
+    int index = ErasureManifest.fragmentIndex(fragment);
+    if (index < 0) {
+      return;
+    }
+    String filename = ErasureManifest.baseName(fragment);
+    Repair repair = repairs.get(filename);
+    if (repair == null) {
+      return;
+    }
+    List<Integer> fetch = new ArrayList<>();
+    synchronized(repair) {
+      if (index >= repair.held.length || repair.held[index] != null) {
+        return;
+      }
+      repair.held[index] = present;
+      if (++repair.answered < repair.held.length) {
+        return;
+      }
+      int missing = 0;
+      for (Boolean held : repair.held) {
+        missing += held ? 0 : 1;
+      }
+      if (missing == 0) {
+        repairs.remove(filename, repair);
+        return;
+      }
+      int k = repair.manifest.dataFragments();
+      if (repair.held.length - missing < k) {
+        giveUp(filename, repair);
+        return;
+      }
+      logger.info(missing + " fragments of " + filename + " are missing, " +
+                  "rebuilding them.");
+      repair.fetching = true;
+      for (int i = 0; i < k; ++i) {
+        fetch.add(repair.nextHeld());
+      }
+    }
+    for (int fragmentIndex : fetch) {
+      route(FETCH, ErasureManifest.fragmentName(filename, fragmentIndex));
+    }
+  }
+
+  /**
+   * Keeps a fragment fetched for a repair. Once k have arrived, the
+   * missing fragments are rebuilt and routed to their owners.
+   *
+   * @param message fragment served by its owner
+   */
+  public void receive(ServeFile message) {
+    String fragment = message.getFilename();
+    int index = ErasureManifest.fragmentIndex(fragment);
+    if (index < 0) {
+      return;
+    }
+    String filename = ErasureManifest.baseName(fragment);
+    Repair repair = repairs.get(filename);
+    if (repair == null) {
+      return;
+    }
+    byte[] content = message.getContent();
+    int replacement;
+    synchronized(repair) {
+      if (!repair.fetching || index >= repair.fragments.length ||
+          repair.fragments[index] != null) {
+        return;
+      }
+      if (content != null &&
+          content.length == repair.manifest.fragmentBytes()) {
+        repair.fragments[index] = content;
+        if (++repair.received < repair.manifest.dataFragments()) {
+          return;
+        }
+        repair.fetching = false;
+        replacement = -1;
+      } else {
+        // Lost since it answered the CHECK, try another fragment
+        repair.held[index] = false;
+        replacement = repair.nextHeld();
+        if (replacement < 0) {
+          giveUp(filename, repair);
+          return;
+        }
+      }
+    }
+    if (replacement < 0) {
+      rebuild(filename, repair);
+    } else {
+      route(FETCH, ErasureManifest.fragmentName(filename, replacement));
+    }
+  }
+
+  /**
+   * Rebuilds the missing fragments of a file and routes them to their
+   * owners. The repair has stopped fetching, so no more fragments are
+   * added to it.
+   *
+   * @param filename of the erasure coded file
+   * @param repair holding k fetched fragments
+   */
+  private void rebuild(String filename, Repair repair) {
+    repairs.remove(filename, repair);
+    ErasureManifest manifest = repair.manifest;
+    byte[][] fragments = repair.fragments.clone();
+    if (!manifest.getCode().reconstruct(fragments,
+        manifest.fragmentBytes())) {
+      return;
+    }
+    int rebuilt = 0;
+    for (int i = 0; i < fragments.length; ++i) {
+      if (!Boolean.TRUE.equals(repair.held[i])) {
+        String fragment = ErasureManifest.fragmentName(filename, i);
+        router.accept(new RelayFile(
+            StoreData.generateKeyFromFilename(fragment), fragment,
+            fragments[i], ""));
+        ++rebuilt;
+      }
+    }
+    repaired.addAndGet(rebuilt);
+    logger.info("Rebuilt " + rebuilt + " fragments of " + filename + ".");
+  }
+
+  private void giveUp(String filename, Repair repair) {
+    repairs.remove(filename, repair);
+    unrecoverable.incrementAndGet();
+    logger.info("Fewer than " + repair.manifest.dataFragments() +
+                " fragments of " + filename + " are left, it can't be " +
+                "repaired.");
+  }
+
+  /**
+   * Forgets a file which was deleted.
+   *
+   * @param filename of the erasure coded file
+   */
+  public void forget(String filename) {
+    repairs.remove(filename);
+  }
+
+  public void shutdown() {
+    scheduler.shutdownNow();
+  }
+
+  /**
+   * Returns a one-line summary of fragment repair.
+   *
+   * @return statistics string
+   */
+  public String getStatistics() {
+    return "checked " + checked.get() + ", repairing " + repairs.size() +
+           ", rebuilt " + repaired.get() + " fragments, unrecoverable " +
+           unrecoverable.get();
+  }
+}
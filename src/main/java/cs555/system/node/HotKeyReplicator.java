@@ -0,0 +1,298 @@
+package cs555.system.node;
+
+import cs555.system.util.ApplicationProperties;
+import cs555.system.util.Logger;
+import cs555.system.util.PeerInformation;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Tracks how often each file this peer owns is read, and gives hot files
+ * extra replicas. Each file has an exponentially decaying read counter, with
+ * a half-life of hotHalfLife seconds, from which its current read rate is
+ * estimated. Once a second, files reading at hotReadRate or more are copied
+ * to every leaf neighbor which doesn't already hold a replica of them, and
+ * those neighbors are advertised to the Peer for offloading reads. When a
+ * hot file cools to half the threshold, the extra replicas are retracted.
+ * The gap between the two thresholds keeps a file near the threshold from
+ * being copied and retracted over and over. A holder which stops being a
+ * leaf neighbor has its copy retracted as soon as that is noticed, and a
+ * file which migrates to another owner has all of its extra copies
+ * retracted.
+ * <p>
+ * Extra replicas are sent as HOT_REPLICATE transfers, so their holders know
+ * to keep them while the owner is still their leaf neighbor, even though
+ * they aren't among the replicationFactor peers nearest the key.
+ *
+ * @author hayne
+ */
+public class HotKeyReplicator {
+
+  private static final Logger logger = Logger.getInstance();
+  private static final long EVALUATION_INTERVAL = 1; // seconds
+  private static final double FORGET_RATE = 0.01; // reads per second
+  private final ReplicaManager replicas;
+  private final Supplier<Set<PeerInformation>> neighbors;
+  private final Function<String,List<PeerInformation>> regularTargets;
+  private final Predicate<String> owns;
+  private final ConcurrentHashMap<String,Popularity> popularity;
+  private final ScheduledExecutorService scheduler;
+  private final double halfLife;
+  private final AtomicLong heated;
+  private final AtomicLong cooled;
+
+  /**
+   * Decaying read counter of one file, the peers holding its extra
+   * replicas while it is hot, and every peer it was ever copied to.
+   */
+  private static class Popularity {
+    private double count;
+    private long lastUpdate = System.nanoTime();
+    private Set<PeerInformation> holders;
+    private final Set<PeerInformation> pushed = new HashSet<>();
+
+    private synchronized void read(double halfLife) {
+      count = decayed(System.nanoTime(), halfLife) + 1;
+      lastUpdate = System.nanoTime();
+    }
+
+    private double decayed(long now, double halfLife) {
+      double elapsed = (now - lastUpdate)/1e9;
+      return count*Math.pow(0.5, elapsed/halfLife);
+    }
+
+    /**
+     * A steady rate of r reads per second holds the counter at
+     * r*halfLife/ln(2), so the rate is recovered from the counter.
+     *
+     * @param halfLife of the counter in seconds
+     * @return estimated reads per second
+     */
+    private synchronized double rate(double halfLife) {
+      return decayed(System.nanoTime(), halfLife)*Math.log(2)/halfLife;
+    }
+  }
+
+  /**
+   * Default constructor.
+   *
+   * @param replicas sends and retracts the extra replicas
+   * @param neighbors supplies this peer's leaf neighbors
+   * @param regularTargets maps a key to the neighbors which hold replicas of
+   * it anyway, given the replicationFactor
+   * @param owns tests if this peer still owns a key
+   */
+  public HotKeyReplicator(ReplicaManager replicas,
+      Supplier<Set<PeerInformation>> neighbors,
+      Function<String,List<PeerInformation>> regularTargets,
+      Predicate<String> owns) {
+    this.replicas = replicas;
+    this.neighbors = neighbors;
+    this.regularTargets = regularTargets;
+    this.owns = owns;
+    this.popularity = new ConcurrentHashMap<>();
+    this.scheduler = Executors.newSingleThreadScheduledExecutor();
+    this.halfLife = Math.max(1, ApplicationProperties.hotHalfLife);
+    this.heated = new AtomicLong(0);
+    this.cooled = new AtomicLong(0);
+  }
+
+  public static boolean isEnabled() {
+    return ApplicationProperties.hotReadRate > 0;
+  }
+
+  public void start() {
+    if (isEnabled()) {
+      scheduler.scheduleWithFixedDelay(this::evaluate, EVALUATION_INTERVAL,
+          EVALUATION_INTERVAL, TimeUnit.SECONDS);
+    }
+  }
+
+  /**
+   * Records that this peer served one of its files.
+   *
+   * @param filename of the file
+   */
+  public void recordRead(String filename) {
+    if (isEnabled()) {
+      popularity.computeIfAbsent(filename, k -> new Popularity())
+                .read(halfLife);
+    }
+  }
+
+  /**
+   * Returns the peers holding extra replicas of a hot file, which may be
+   * asked to serve it.
+   *
+   * @param filename of the file
+   * @return copy of the holders, empty if the file isn't hot
+   */
+  public Set<PeerInformation> getHolders(String filename) {
+    Set<PeerInformation> holders = new HashSet<>();
+    Popularity file = popularity.get(filename);
+    if (file != null) {
+      synchronized(file) {
+        if (file.holders != null) {
+          holders.addAll(file.holders);
+        }
+      }
+    }
+    return holders;
+  }
+
+  /**
+   * Forgets a file which was deleted or moved away. The Peer retracts its
+   * replicas itself.
+   *
+   * @param filename of the file
+   * @return every peer the file was copied to while it was tracked, which
+   * may still hold it
+   */
+  public Set<PeerInformation> forget(String filename) {
+    Set<PeerInformation> pushed = new HashSet<>();
+    Popularity file = popularity.remove(filename);
+    if (file != null) {
+      synchronized(file) {
+        pushed.addAll(file.pushed);
+      }
+    }
+    return pushed;
+  }
+
+  /**
+   * Heats and cools files by their current read rate. Hot files whose leaf
+   * neighbors changed are copied to the new neighbors.
+   */
+  private void evaluate() {
+    double threshold = ApplicationProperties.hotReadRate;
+    Set<PeerInformation> current = neighbors.get();
+    for (Map.Entry<String,Popularity> entry : popularity.entrySet()) {
+      String filename = entry.getKey();
+      Popularity file = entry.getValue();
+      double rate = file.rate(halfLife);
+      synchronized(file) {
+        if (!owns.test(StoreData.generateKeyFromFilename(filename))) {
+          abandon(filename, file);
+        } else if (rate >= threshold || (file.holders != null &&
+                                         rate >= threshold/2)) {
+          heat(filename, file, current);
+        } else if (file.holders != null) {
+          cool(filename, file);
+        } else if (rate < FORGET_RATE) {
+          popularity.remove(filename, file);
+        }
+      }
+    }
+  }
+
+  /**
+   * Copies a hot file to the leaf neighbors which don't hold it yet, and
+   * retracts it from holders which are no longer leaf neighbors. Callers
+   * must hold the file's lock.
+   *
+   * @param filename of the hot file
+   * @param file its popularity
+   * @param current this peer's leaf neighbors
+   */
+  private void heat(String filename, Popularity file,
+      Set<PeerInformation> current) {
+    String key = StoreData.generateKeyFromFilename(filename);
+    List<PeerInformation> regular = regularTargets.apply(key);
+    Set<PeerInformation> extra = new HashSet<>(current);
+    extra.removeAll(regular);
+    Set<PeerInformation> previous =
+        file.holders == null ? Set.of() : file.holders;
+    Set<PeerInformation> retract = new HashSet<>(previous);
+    retract.removeAll(extra);
+    retract.removeAll(regular);
+    if (!retract.isEmpty()) {
+      replicas.retract(filename, retract);
+    }
+    Map<PeerInformation,List<String>> assignments = new HashMap<>();
+    for (PeerInformation holder : extra) {
+      if (!previous.contains(holder)) {
+        assignments.put(holder, List.of(filename));
+      }
+    }
+    if (file.holders == null) {
+      heated.incrementAndGet();
+      logger.info(filename + " is hot, copying it to " + extra.size() +
+                  " more neighbors.");
+    }
+    replicas.replicate(assignments, true);
+    file.pushed.addAll(extra);
+    file.holders = extra;
+  }
+
+  /**
+   * Retracts the extra replicas of a file that has cooled, except from
+   * neighbors which hold a replica of it anyway. Callers must hold the
+   * file's lock.
+   *
+   * @param filename of the cooled file
+   * @param file its popularity
+   */
+  private void cool(String filename, Popularity file) {
+    String key = StoreData.generateKeyFromFilename(filename);
+    Set<PeerInformation> retract = new HashSet<>(file.holders);
+    retract.removeAll(regularTargets.apply(key));
+    replicas.retract(filename, retract);
+    file.holders = null;
+    cooled.incrementAndGet();
+    logger.info(filename + " has cooled, retracting " + retract.size() +
+                " extra replicas.");
+  }
+
+  /**
+   * Stops tracking a file which migrated to another owner, and retracts
+   * every extra replica this peer copied, except from neighbors which hold
+   * a replica of it anyway. The new owner's neighbors manage its replicas
+   * now. Callers must hold the file's lock.
+   *
+   * @param filename of the migrated file
+   * @param file its popularity
+   */
+  private void abandon(String filename, Popularity file) {
+    popularity.remove(filename, file);
+    String key = StoreData.generateKeyFromFilename(filename);
+    Set<PeerInformation> retract = new HashSet<>(file.pushed);
+    retract.removeAll(regularTargets.apply(key));
+    if (!retract.isEmpty()) {
+      replicas.retract(filename, retract);
+      logger.info(filename + " has migrated, retracting " + retract.size() +
+                  " extra replicas.");
+    }
+    file.holders = null;
+    file.pushed.clear();
+  }
+
+  public void shutdown() {
+    scheduler.shutdownNow();
+  }
+
+  /**
+   * Returns a one-line summary of hot file replication.
+   *
+   * @return statistics string
+   */
+  public String getStatistics() {
+    int hot = 0;
+    for (Popularity file : popularity.values()) {
+      synchronized(file) {
+        if (file.holders != null) {
+          ++hot;
+        }
+      }
+    }
+    return "tracked " + popularity.size() + ", hot " + hot + ", heated " +
+           heated.get() + ", cooled " + cooled.get();
+  }
+}
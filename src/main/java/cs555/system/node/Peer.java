@@ -1,24 +1,39 @@
 package cs555.system.node;
 
+import cs555.system.cache.RouteCache;
 import cs555.system.routing.LeafSet;
+import cs555.system.routing.ProximityMonitor;
+import cs555.system.routing.RouteLearner;
 import cs555.system.routing.RoutingInformation;
+import cs555.system.routing.RoutingSnapshot;
+import cs555.system.routing.TopologyCoalescer;
 import cs555.system.transport.TCPConnection;
 import cs555.system.transport.TCPConnectionCache;
 import cs555.system.transport.TCPServerThread;
 import cs555.system.util.ApplicationProperties;
+import cs555.system.util.ErasureManifest;
 import cs555.system.util.FileSynchronizer;
+import cs555.system.util.HexUtilities;
 import cs555.system.util.Logger;
 import cs555.system.util.PeerInformation;
+import cs555.system.util.SingleFlight;
+import cs555.system.util.StripeManifest;
 import cs555.system.wireformats.*;
 
 import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.ServerSocket;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Scanner;
-import java.util.Set;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 /**
@@ -29,16 +44,55 @@ import java.util.stream.Collectors;
 public class Peer implements Node {
 
   private static final Logger logger = Logger.getInstance();
+  public final static String MIGRATE = "MIGRATE";
+  private static final int MAINTENANCE_PROBES = 8; // pings per round
+  private static final int MAINTENANCE_ROW_REQUESTS = 2; // per round
+  private static final int MAX_UNANSWERED = 3; // pings before removal
+  private static final int HANDOFF_ROUNDS = 2;
   private final PeerInformation self;
   private final RoutingInformation routingInformation;
   private final TCPConnectionCache connections;
+  private final ProximityMonitor proximity;
+  private final RouteLearner learner;
   private final FileSynchronizer files;
+  private final FileMigrator migrator;
+  private final ReplicaManager replicas;
+  private final RouteCache routeCache;
+  private final HotKeyReplicator hotKeys;
+  private final FragmentRepairer repairer;
+  private final SingleFlight<String,ServeFile> serving;
+  private final ScheduledExecutorService scheduler;
+  private final TopologyCoalescer topology;
+  private final AtomicBoolean routingModified;
+  private final Random random;
+  private final AtomicInteger activeServes;
+  private PeerInformation replicaLeft;
+  private PeerInformation replicaRight;
 
   public Peer(String identifier, String host, int port) {
     this.self = new PeerInformation(identifier, host, port);
-    this.routingInformation = new RoutingInformation();
     this.connections = new TCPConnectionCache(this);
-    this.files = new FileSynchronizer();
+    this.proximity = new ProximityMonitor(self, connections);
+    this.routingInformation = new RoutingInformation(proximity);
+    this.learner = new RouteLearner(self, routingInformation, proximity);
+    this.files = new FileSynchronizer(StoreData::generateKeyFromFilename);
+    this.migrator =
+        new FileMigrator(self, files, connections, this::getFilePath);
+    this.replicas =
+        new ReplicaManager(self, files, connections, this::getFilePath);
+    this.routeCache = new RouteCache();
+    this.serving = new SingleFlight<>();
+    this.hotKeys = new HotKeyReplicator(replicas, this::getLeafNeighbors,
+        this::getReplicaTargets,
+        key -> self.equals(routingInformation.lookup(key)));
+    this.repairer = new FragmentRepairer(self, this::getOwnedManifests,
+        this::routeFromSelf);
+    this.scheduler = Executors.newSingleThreadScheduledExecutor();
+    this.topology = new TopologyCoalescer(this::rebalance,
+        ApplicationProperties.topologyWindow);
+    this.routingModified = new AtomicBoolean(false);
+    this.random = new Random();
+    this.activeServes = new AtomicInteger(0);
   }
 
   public static void main(String[] args) {
@@ -55,6 +109,9 @@ public class Peer implements Node {
       if (peer.sendRegistrationToDiscovery()) {
         TCPServerThread serverThread = new TCPServerThread(peer, serverSocket);
         (new Thread(serverThread)).start();
+        peer.startMaintenance();
+        peer.hotKeys.start();
+        peer.repairer.start();
         peer.interact();
       }
     } catch (IOException e) {
@@ -120,6 +177,69 @@ public class Peer implements Node {
         replaceLeaf(event);
         break;
 
+      case Protocol.PING:
+        replyToPing((PingMessage) event);
+        break;
+
+      case Protocol.PONG:
+        recordLatency((PingMessage) event);
+        break;
+
+      case Protocol.ROW_REQUEST:
+        sendRoutingRow((RoutingRowMessage) event);
+        break;
+
+      case Protocol.ROW_RESPONSE:
+        integrateRoutingRow((RoutingRowMessage) event);
+        break;
+
+      case Protocol.MIGRATE_ACCEPT:
+        MigrationMessage accept = (MigrationMessage) event;
+        migrator.transfer(accept.getPeer(), accept.getFilenames());
+        break;
+
+      case Protocol.KEY_RANGE_REQUEST:
+        handoffKeyRange((PeerMessage) event);
+        break;
+
+      case Protocol.BULK_TRANSFER:
+        receiveBulkTransfer((BulkTransfer) event);
+        break;
+
+      case Protocol.MIGRATE_ACK:
+        MigrationMessage ack = (MigrationMessage) event;
+        migrator.acknowledge(ack.getPeer(), ack.getFilenames());
+        break;
+
+      case Protocol.REPLICATE:
+      case Protocol.HOT_REPLICATE:
+        replicas.receive((BulkTransfer) event);
+        break;
+
+      case Protocol.REPLICA_DROP:
+        replicas.drop(((MigrationMessage) event).getFilenames());
+        break;
+
+      case Protocol.ROUTE_CACHE:
+        BulkTransfer copy = (BulkTransfer) event;
+        for (int i = 0; i < copy.size(); ++i) {
+          routeCache.put(copy.getFilenames().get(i), copy.getContents().get(i));
+        }
+        break;
+
+      case Protocol.CACHE_INVALIDATE:
+        invalidateRouteCache(((MigrationMessage) event).getFilenames());
+        break;
+
+      case Protocol.FRAGMENT_PRESENT, Protocol.FRAGMENT_MISSING:
+        repairer.status(((GeneralMessage) event).getMessage(),
+            event.getType() == Protocol.FRAGMENT_PRESENT);
+        break;
+
+      case Protocol.SERVE_FILE:
+        repairer.receive((ServeFile) event);
+        break;
+
       default:
         logger.debug("Event couldn't be processed. " + event.getType());
     }
@@ -134,9 +254,15 @@ public class Peer implements Node {
    * @param event message being processed
    */
   private void registrationHandler(Event event) {
+    // Our identifier is settled, so files from a previous run can be found
+    files.recover(getDirectory(), this::getFilePath);
+    replicas.recover(getDirectory());
     if (event.getType() == Protocol.NO_PEERS) {
       printRegistrationDetails(null);
       routingInformation.initialize(self, null, null);
+      migrateRecoveredFiles();
+    } else if (!routingInformation.isInitialized() && rejoinFromSnapshot()) {
+      printRegistrationDetails(((PeerMessage) event).getPeer());
     } else {
       PeerInformation selectPeer = ((PeerMessage) event).getPeer();
       JoinMessage joinMessage = new JoinMessage(self);
@@ -166,10 +292,121 @@ public class Peer implements Node {
 
   private void buildRoutingInformation(JoinMessage joinMessage) {
     routingInformation.initialize(self, joinMessage, connections);
+    // Every peer on the join path is live, and might be closer than the
+    // entries we inherited. Measure everything we know about.
+    for (PeerInformation hop : joinMessage.getHops()) {
+      learner.offer(hop);
+    }
+    for (PeerInformation peer : routingInformation.getPeerSet(false)) {
+      proximity.probe(peer);
+    }
+    requestKeyRange();
+    migrateRecoveredFiles();
+  }
+
+  /**
+   * Rejoins the network from the routing information saved by a previous run
+   * with the same identifier. The known peers are told our new address in
+   * one round of PeerBroadcasts, and routing resumes straight away. Entries
+   * are verified lazily: each is PINGed, and maintenance removes those that
+   * never answer. The leaf neighbors are asked for their leaf sets, in case
+   * closer peers joined while we were away.
+   *
+   * @return true if we rejoined, false if there was no snapshot, or none of
+   * its peers could be reached, and a SPECIAL_JOIN is needed
+   */
+  private boolean rejoinFromSnapshot() {
+    List<PeerInformation> snapshot = RoutingSnapshot.load(getDirectory());
+    snapshot.remove(self);
+    if (snapshot.isEmpty() ||
+        !routingInformation.restore(self, snapshot, connections)) {
+      return false;
+    }
+    logger.info("Rejoined from a routing snapshot of " + snapshot.size() +
+                " peers.");
+    Set<PeerInformation> peers = routingInformation.getPeerSet(false);
+    for (PeerInformation peer : peers) {
+      proximity.probe(peer);
+    }
+    LeafSet leafSet = routingInformation.getLeafSet();
+    RoutingRowMessage request = new RoutingRowMessage(Protocol.ROW_REQUEST,
+        self, RoutingRowMessage.LEAF_SET, new HashSet<>());
+    for (PeerInformation neighbor : Arrays.asList(leafSet.getLeft(),
+        leafSet.getRight())) {
+      if (neighbor != null) {
+        connections.send(neighbor.getAddress(), request, false);
+      }
+    }
+    requestKeyRange();
+    migrateRecoveredFiles();
+    routingChanged();
+    return true;
+  }
+
+  /**
+   * Files recovered from a previous run may belong to other peers now, so a
+   * migration pass is scheduled as soon as the routing information exists.
+   */
+  private void migrateRecoveredFiles() {
+    if (!files.getFileSet().isEmpty()) {
+      topology.signal();
+    }
+  }
+
+  /**
+   * Asks this peer's new leaf neighbors for the files in its key range. They
+   * are the only peers whose keys this peer can have taken over, so the whole
+   * range arrives in a few bulk transfers instead of waiting for each
+   * neighbor's next migration pass.
+   */
+  private void requestKeyRange() {
+    LeafSet leafSet = routingInformation.getLeafSet();
+    PeerMessage request = new PeerMessage(Protocol.KEY_RANGE_REQUEST, self);
+    Set<PeerInformation> neighbors = new HashSet<>();
+    neighbors.add(leafSet.getLeft());
+    neighbors.add(leafSet.getRight());
+    neighbors.remove(null);
+    for (PeerInformation neighbor : neighbors) {
+      if (connections.send(neighbor.getAddress(), request, false)) {
+        logger.debug("Requested key range from " + neighbor.getIdentifier());
+      }
+    }
+  }
+
+  /**
+   * Hands a newly joined neighbor every file it now owns, queued straight
+   * for bulk transfer since the owner is already known.
+   *
+   * @param request KEY_RANGE_REQUEST from the new peer
+   */
+  private void handoffKeyRange(PeerMessage request) {
+    PeerInformation requester = request.getPeer();
+    if (learner.offer(requester)) {
+      routingChanged();
+    }
+    List<String> handoff = new ArrayList<>();
+    for (Map.Entry<Path,String> candidate :
+        getMigrationCandidates().entrySet()) {
+      if (requester.equals(routingInformation.lookup(candidate.getValue())) &&
+          migrator.markPending(candidate.getKey())) {
+        handoff.add(candidate.getKey().getFileName().toString());
+      }
+    }
+    logger.info("Handing off " + handoff.size() + " files to new neighbor " +
+                requester.getIdentifier() + ".");
+    if (!handoff.isEmpty()) {
+      migrator.transfer(requester, handoff);
+    }
   }
 
   private void attachRoutingInformation(JoinMessage message) {
     routingInformation.attachRoutingToJoinMessage(message);
+    // The joining peer is in the hops too, but it isn't ready to route yet
+    List<PeerInformation> relays = new ArrayList<>(message.getHops());
+    relays.remove(message.getDestination());
+    if (learner.observeAll(relays)) {
+      routingChanged();
+    }
     message.getHops().add(self);
 
     String key = message.getDestination().getIdentifier();
@@ -189,48 +426,164 @@ public class Peer implements Node {
     }
   }
 
+  /**
+   * Routes a SEEK, and handles it if this peer is the destination. Requests
+   * from the StoreData are foreground work, which background migration
+   * yields to. Migrations and fragment repairs are background work.
+   *
+   * @param event the SEEK
+   */
   private void routeSeekMessage(Event event) {
     SeekMessage message = (SeekMessage) event;
+    boolean foreground = switch (message.getOperation()) {
+      case StoreData.STORE, StoreData.RETRIEVE, StoreData.HEDGE,
+           StoreData.DELETE -> true;
+      default -> false;
+    };
+    if (foreground) {
+      migrator.foregroundStarted();
+    }
+    try {
+      handleSeekMessage(message);
+    } finally {
+      if (foreground) {
+        migrator.foregroundFinished();
+      }
+    }
+  }
+
+  private void handleSeekMessage(SeekMessage message) {
+    if (learner.observeAll(message.getHops())) {
+      routingChanged();
+    }
+    // The owner may have handed this RETRIEVE to a replica holder, which
+    // didn't have the file after all and routed it back
+    boolean returned = message.getHops().contains(self);
     message.addHop(self);
+    String operation = message.getOperation();
+    boolean hedge = StoreData.HEDGE.equals(operation);
+    if ((hedge || StoreData.RETRIEVE.equals(operation)) &&
+        (serveReplica(message) || serveRouteCache(message))) {
+      return;
+    }
+    if (StoreData.DELETE.equals(operation)) {
+      invalidateRouteCache(List.of(
+          Paths.get(message.getPath()).getFileName().toString()));
+    }
     PeerInformation next =
         relay(message.getKey(), message, message.getHops().size());
     if (self.equals(next)) {
-      String operation = message.getOperation();
       switch (operation) {
         case StoreData.STORE -> issueStorageDecision(message);
-        case StoreData.RETRIEVE -> serveFile(message);
+        case StoreData.RETRIEVE, StoreData.HEDGE -> {
+          if (returned || !offloadRetrieve(message, hedge)) {
+            serveFile(message);
+          }
+        }
         case StoreData.DELETE -> deleteFile(message);
+        case MIGRATE -> acceptMigration(message);
+        case FragmentRepairer.CHECK -> checkFragment(message);
+        case FragmentRepairer.FETCH -> serveFile(message);
       }
     }
   }
 
+  /**
+   * Sends a message from this peer toward its key, as if it had been
+   * received from another peer, handling it here if this peer owns the key.
+   *
+   * @param event SeekMessage or RelayFile to route
+   */
+  private void routeFromSelf(Event event) {
+    if (event instanceof SeekMessage message) {
+      routeSeekMessage(message);
+    } else {
+      handleRelayFile((RelayFile) event);
+    }
+  }
+
+  /**
+   * Answers a CHECK from the peer repairing an erasure coded file, telling
+   * it whether this peer holds the fragment.
+   *
+   * @param message the routed CHECK
+   */
+  private void checkFragment(SeekMessage message) {
+    byte type = files.contains(getFilePath(message.getPath())) ?
+                    Protocol.FRAGMENT_PRESENT : Protocol.FRAGMENT_MISSING;
+    GeneralMessage response = new GeneralMessage(type, message.getPath());
+    connections.send(message.getRequestAddress(), response, false);
+  }
+
+  /**
+   * Finds the erasure manifests among the files this peer owns.
+   *
+   * @return manifests by filename
+   */
+  private Map<String,ErasureManifest> getOwnedManifests() {
+    Map<String,ErasureManifest> manifests = new HashMap<>();
+    if (!routingInformation.isInitialized()) {
+      return manifests;
+    }
+    for (Path path : files.getFileSet()) {
+      String filename = path.getFileName().toString();
+      String key = StoreData.generateKeyFromFilename(filename);
+      if (ErasureManifest.fragmentIndex(filename) >= 0 ||
+          !self.equals(routingInformation.lookup(key))) {
+        continue;
+      }
+      ErasureManifest manifest =
+          ErasureManifest.parse(files.inspectFile(path));
+      if (manifest != null) {
+        manifests.put(filename, manifest);
+      }
+    }
+    return manifests;
+  }
+
   private void fileHandler(Event event) {
     RelayFile message = (RelayFile) event;
+    boolean foreground = !message.getAddress().isEmpty(); // from StoreData
+    if (foreground) {
+      migrator.foregroundStarted();
+    }
+    try {
+      handleRelayFile(message);
+    } finally {
+      if (foreground) {
+        migrator.foregroundFinished();
+      }
+    }
+  }
+
+  private void handleRelayFile(RelayFile message) {
     message.incrementHops();
     PeerInformation next = relay(message.getKey(), message, message.getHops());
     if (self.equals(next)) { // We should store the file
       storeFile(message);
       next = routingInformation.lookup(message.getKey());
       if (!self.equals(next)) {
-        migrateFiles();
+        topology.signal(); // we're not the owner, migrate with next batch
+      } else {
+        replicate(List.of(message.getFilename()), Set.of());
       }
     }
   }
 
   private void integrateNewPeer(Event event) {
     PeerBroadcast broadcast = (PeerBroadcast) event;
-    boolean added = routingInformation.addPeer(broadcast.getPeer());
+    // A peer rejoining from a snapshot may be at a new address
+    boolean added = routingInformation.refreshAddress(broadcast.getPeer());
+    if (learner.offer(broadcast.getPeer())) {
+      added = true;
+    }
     for (PeerInformation peer : broadcast.getContents()) {
-      if (!self.equals(peer)) {
-        if (routingInformation.addPeer(peer)) {
-          added = true;
-        }
+      if (learner.offer(peer)) {
+        added = true;
       }
     }
     if (added) {
-      System.out.println("ROUTING UPDATED:");
-      routingInformation.displayRoutingInformation();
-      migrateFiles();
+      routingChanged();
     }
   }
 
@@ -246,33 +599,228 @@ public class Peer implements Node {
       }
     }
     if (modified) {
+      routingChanged();
+    }
+  }
+
+  private void replyToPing(PingMessage ping) {
+    PingMessage pong =
+        new PingMessage(Protocol.PONG, self, ping.getTimestamp());
+    connections.send(ping.getPeer().getAddress(), pong, false);
+    if (learner.observe(ping.getPeer())) {
+      routingChanged();
+    }
+  }
+
+  /**
+   * Records that the routing information was modified. The routing
+   * information is printed, and files are migrated, once per batch of
+   * changes by the TopologyCoalescer.
+   */
+  private void routingChanged() {
+    routingModified.set(true);
+    topology.signal();
+  }
+
+  /**
+   * Runs once per batch of topology changes, on the TopologyCoalescer's
+   * thread.
+   */
+  private void rebalance() {
+    if (routingModified.getAndSet(false)) {
       System.out.println("ROUTING UPDATED:");
       routingInformation.displayRoutingInformation();
+      RoutingSnapshot.save(getDirectory(), routingInformation.getKnownPeers());
+    }
+    migrateFiles();
+    reconcileReplicas();
+  }
+
+  private void recordLatency(PingMessage pong) {
+    proximity.recordResponse(pong);
+    if (routingInformation.isInitialized() &&
+        routingInformation.addPeer(pong.getPeer())) {
+      routingChanged();
+    }
+  }
+
+  /**
+   * Schedules periodic routing table maintenance, if it is enabled in the
+   * application.properties file.
+   */
+  private void startMaintenance() {
+    int interval = ApplicationProperties.maintenanceInterval;
+    if (interval > 0) {
+      scheduler.scheduleWithFixedDelay(this::maintainRouting, interval,
+          interval, TimeUnit.SECONDS);
     }
   }
 
+  /**
+   * One round of background routing table maintenance. A handful of entries
+   * are PINGed, and entries which have stopped answering are removed. Then,
+   * for a limited number of rows with empty slots, a row-mate is asked for
+   * its own entries in that row. Since a row-mate shares the row's prefix
+   * with us, its entries are valid candidates for our row too.
+   */
+  private void maintainRouting() {
+    if (!routingInformation.isInitialized()) {
+      return;
+    }
+    List<PeerInformation> peers =
+        new ArrayList<>(routingInformation.getPeerSet(false));
+    Collections.shuffle(peers, random);
+    for (int i = 0; i < Math.min(MAINTENANCE_PROBES, peers.size()); ++i) {
+      PeerInformation peer = peers.get(i);
+      if (proximity.getUnansweredProbes(peer) >= MAX_UNANSWERED ||
+          !proximity.ping(peer)) {
+        logger.debug(peer.getIdentifier() + " failed its liveness probe.");
+        removePeerFromRouting(peer);
+      }
+    }
+
+    int requests = 0;
+    for (int row = 0; row < 4 && requests < MAINTENANCE_ROW_REQUESTS; ++row) {
+      if (routingInformation.countEmptySlots(row) == 0) {
+        continue;
+      }
+      List<PeerInformation> rowMates =
+          new ArrayList<>(routingInformation.getRowEntries(row, false));
+      if (rowMates.isEmpty()) {
+        continue;
+      }
+      PeerInformation rowMate = rowMates.get(random.nextInt(rowMates.size()));
+      RoutingRowMessage request =
+          new RoutingRowMessage(Protocol.ROW_REQUEST, self, row,
+              new HashSet<>());
+      if (connections.send(rowMate.getAddress(), request, false)) {
+        ++requests;
+      } else {
+        removePeerFromRouting(rowMate);
+      }
+    }
+  }
+
+  private void sendRoutingRow(RoutingRowMessage request) {
+    if (!routingInformation.isInitialized()) {
+      return;
+    }
+    if (learner.observe(request.getPeer())) {
+      routingChanged();
+    }
+    Set<PeerInformation> entries;
+    if (request.getRow() == RoutingRowMessage.LEAF_SET) {
+      LeafSet leafSet = routingInformation.getLeafSet();
+      entries = new HashSet<>();
+      entries.add(leafSet.getLeft());
+      entries.add(leafSet.getRight());
+      entries.remove(null);
+    } else {
+      entries = routingInformation.getRowEntries(request.getRow(), true);
+    }
+    entries.remove(request.getPeer());
+    RoutingRowMessage response =
+        new RoutingRowMessage(Protocol.ROW_RESPONSE, self, request.getRow(),
+            entries);
+    connections.send(request.getPeer().getAddress(), response, false);
+  }
+
+  private void integrateRoutingRow(RoutingRowMessage response) {
+    boolean added = false;
+    for (PeerInformation peer : response.getEntries()) {
+      if (learner.offer(peer)) {
+        added = true;
+      }
+    }
+    if (added) {
+      routingChanged();
+    }
+  }
+
+  /**
+   * First phase of migration. For every file which may no longer belong to
+   * this peer, a MIGRATE lookup is routed toward the file's key. The owner
+   * answers directly, and the FileMigrator then sends the file straight to it.
+   */
   private synchronized void migrateFiles() {
-    logger.debug("migrateFiles() called.");
-    Set<Path> fileSet = files.getFileSet();
-    for (Path path : fileSet) {
+    Map<Path,String> candidates = getMigrationCandidates();
+    logger.debug("migrateFiles() considering " + candidates.size() + " of " +
+                 files.getFileSet().size() + " files.");
+    for (Map.Entry<Path,String> candidate : candidates.entrySet()) {
+      Path path = candidate.getKey();
+      String key = candidate.getValue();
+      if (self.equals(routingInformation.lookup(key)) ||
+          !migrator.markPending(path)) {
+        continue;
+      }
       String filename = path.getFileName().toString();
-      String key = StoreData.generateKeyFromFilename(filename);
-      PeerInformation closestPeer = routingInformation.lookup(key);
-      if (!self.equals(closestPeer)) {
-        byte[] content = files.readFile(path);
-        if (content != null) {
-          RelayFile message = new RelayFile(key, filename, content, "");
-          closestPeer = relay(key, message, message.getHops());
-          if (!self.equals(closestPeer)) {
-            files.deleteFile(path);
-            logger.info("File " + path + " was relocated to " +
-                         closestPeer.getIdentifier() + " and deleted.");
-          } else {
-            logger.debug("File " + path + "was not relocated.");
-          }
+      SeekMessage lookup =
+          new SeekMessage(MIGRATE, key, filename, self.getAddress());
+      lookup.addHop(self);
+      if (self.equals(relay(key, lookup, lookup.getHops().size()))) {
+        migrator.clearPending(path); // routing changed, it's ours after all
+      }
+    }
+  }
+
+  /**
+   * Finds the files which might no longer belong to this peer. A key which is
+   * closer to this peer than half the distance to the nearest known peer on
+   * either side can't be closer to anyone else, so only files outside that
+   * arc need to be looked up.
+   *
+   * @return map of path to hex key for files that may need to move
+   */
+  private Map<Path,String> getMigrationCandidates() {
+    int left = 65536;
+    int right = 65536;
+    for (PeerInformation peer : routingInformation.getPeerSet(false)) {
+      left = Math.min(left, self.distanceToLeft(peer));
+      right = Math.min(right, self.distanceToRight(peer));
+    }
+    if (left == 65536) { // we're the only peer, everything is ours
+      return Collections.emptyMap();
+    }
+    int selfKey = HexUtilities.convertHexToInt(self.getIdentifier());
+    int from = (selfKey + (right - 1)/2 + 1)%65536;
+    int to = (selfKey - (left - 1)/2 - 1 + 65536)%65536;
+    return files.getFilesInRange(from, to);
+  }
+
+  /**
+   * Stores every file in a BulkTransfer, and acknowledges each file this peer
+   * now holds, including files it already had. If any of the files belong to
+   * some other peer, they'll be migrated with the next topology batch.
+   *
+   * @param transfer files sent directly by another peer
+   */
+  private void receiveBulkTransfer(BulkTransfer transfer) {
+    List<String> stored = new ArrayList<>(transfer.size());
+    List<String> owned = new ArrayList<>(transfer.size());
+    boolean misplaced = false;
+    for (int i = 0; i < transfer.size(); ++i) {
+      String filename = transfer.getFilenames().get(i);
+      Path path = getFilePath(filename);
+      if (files.contains(path) ||
+          files.writeFile(path, transfer.getContents().get(i))) {
+        stored.add(filename);
+        String key = StoreData.generateKeyFromFilename(filename);
+        if (!self.equals(routingInformation.lookup(key))) {
+          misplaced = true;
+        } else {
+          owned.add(filename);
         }
       }
     }
+    logger.info(stored.size() + " of " + transfer.size() + " files from " +
+                transfer.getSender().getIdentifier() + " were stored.");
+    MigrationMessage ack =
+        new MigrationMessage(Protocol.MIGRATE_ACK, self, stored);
+    connections.send(transfer.getSender().getAddress(), ack, false);
+    if (misplaced) {
+      topology.signal();
+    }
+    replicate(owned, Set.of());
   }
 
   private void storeFile(RelayFile message) {
@@ -336,10 +884,10 @@ public class Peer implements Node {
   }
 
   private void removePeerFromRouting(PeerInformation peer) {
+    proximity.forget(peer);
     boolean removed = routingInformation.removePeer(peer);
     if (removed) {
-      System.out.println("ROUTING UDPATED:");
-      routingInformation.displayRoutingInformation();
+      routingChanged();
     }
   }
 
@@ -363,27 +911,392 @@ public class Peer implements Node {
     connections.send(message.getRequestAddress(), response, true);
   }
 
+  /**
+   * Answers a MIGRATE lookup which ended at this peer, telling the peer that
+   * holds the file to send it here directly.
+   *
+   * @param message the routed lookup
+   */
+  private void acceptMigration(SeekMessage message) {
+    if (message.getRequestAddress().equals(self.getAddress())) {
+      migrator.clearPending(getFilePath(message.getPath()));
+      return;
+    }
+    MigrationMessage accept =
+        new MigrationMessage(Protocol.MIGRATE_ACCEPT, self,
+            new ArrayList<>(List.of(message.getPath())));
+    connections.send(message.getRequestAddress(), accept, false);
+  }
+
   private void serveFile(SeekMessage message) {
     Path remotePath = Paths.get(message.getPath());
     String filename = remotePath.getFileName().toString();
     Path localPath = getFilePath(filename);
 
-    byte[] content = files.readFile(localPath);
-    ServeFile response = new ServeFile(filename, content);
+    activeServes.incrementAndGet();
+    try {
+      ServeFile response = prepareResponse(message, "file", filename,
+          () -> files.mapFile(localPath));
+      connections.send(message.getRequestAddress(), response, false);
+      // Repair fetches don't make a file popular
+      if (response.hasContent() &&
+          !FragmentRepairer.FETCH.equals(message.getOperation())) {
+        hotKeys.recordRead(filename);
+        if (RouteCache.isPopular(files.getReads(localPath))) {
+          pushToPreviousHop(message, filename, response.getContent());
+        }
+      }
+    } finally {
+      activeServes.decrementAndGet();
+    }
+  }
+
+  /**
+   * Reads a file and encodes the ServeFile answering a RETRIEVE for it.
+   * Concurrent RETRIEVEs for the same file, from the same source, share
+   * one read and one encoded ServeFile, so a burst of requests for a hot
+   * file costs one disk read rather than one per request.
+   *
+   * @param message the RETRIEVE
+   * @param source where the content comes from, so that only requests
+   * served from the same place are coalesced
+   * @param filename of the file
+   * @param reader reads the content, null if it isn't there
+   * @return the ServeFile, already marshalled
+   */
+  private ServeFile prepareResponse(SeekMessage message, String source,
+      String filename, Supplier<ByteBuffer> reader) {
+    byte type = getServeType(message);
+    String key = source + "|" + type + "|" + filename;
+    return serving.execute(key, () -> {
+      ServeFile response = new ServeFile(type, filename, reader.get());
+      try {
+        response.getBytes();
+      } catch (IOException e) {
+        logger.error("Couldn't encode " + filename + ". " + e.getMessage());
+      }
+      return response;
+    });
+  }
+
+  /**
+   * Answers a RETRIEVE from a copy pushed here by a peer closer to the
+   * file's owner. A copy which is itself popular here is pushed one more hop
+   * back along the route.
+   *
+   * @param message the RETRIEVE
+   * @return true if a cached copy was served
+   */
+  private boolean serveRouteCache(SeekMessage message) {
+    String filename = Paths.get(message.getPath()).getFileName().toString();
+    if (!routeCache.contains(filename)) {
+      return false;
+    }
+    ServeFile response = prepareResponse(message, "route", filename,
+        () -> routeCache.get(filename));
+    if (!response.hasContent()) {
+      return false;
+    }
     connections.send(message.getRequestAddress(), response, false);
+    logger.debug("Served route cache copy of " + filename + ".");
+    if (RouteCache.isPopular(routeCache.getHits(filename))) {
+      pushToPreviousHop(message, filename, response.getContent());
+    }
+    return true;
+  }
+
+  /**
+   * Pushes a copy of a popular file to the peer which relayed the RETRIEVE
+   * here, at most once per routeCacheTtl, so that it can answer the next
+   * RETRIEVEs itself. Files too large for a route cache to keep aren't
+   * pushed at all.
+   *
+   * @param message the RETRIEVE that was just served
+   * @param filename of the file
+   * @param content of the file
+   */
+  private void pushToPreviousHop(SeekMessage message, String filename,
+      byte[] content) {
+    List<PeerInformation> hops = message.getHops();
+    if (hops.size() < 2) {
+      return; // the request came straight from the StoreData
+    }
+    PeerInformation previous = hops.get(hops.size() - 2);
+    if (self.equals(previous) || !routeCache.admits(content.length) ||
+        !routeCache.shouldPush(filename, previous.getAddress())) {
+      return;
+    }
+    BulkTransfer transfer = new BulkTransfer(Protocol.ROUTE_CACHE, self);
+    transfer.addFile(filename, content);
+    if (connections.send(previous.getAddress(), transfer, false)) {
+      logger.debug("Pushed " + filename + " to route cache at " +
+                   previous.getIdentifier() + ".");
+    }
+  }
+
+  /**
+   * Drops route cache copies of deleted files, here and at every peer this
+   * peer pushed them to, which pass the invalidation on in turn.
+   *
+   * @param filenames deleted files
+   */
+  private void invalidateRouteCache(List<String> filenames) {
+    for (String filename : filenames) {
+      routeCache.invalidate(filename);
+      Set<String> destinations = routeCache.takePushes(filename);
+      if (destinations.isEmpty()) {
+        continue;
+      }
+      MigrationMessage invalidate = new MigrationMessage(
+          Protocol.CACHE_INVALIDATE, self, List.of(filename));
+      for (String address : destinations) {
+        connections.send(address, invalidate, false);
+      }
+    }
+  }
+
+  /**
+   * Answers a RETRIEVE from this peer's replica of the file, if it has one.
+   * RETRIEVEs for a key converge on its owner through its leaf neighbors, so
+   * the replica nearest the route serves the request.
+   *
+   * @param message the RETRIEVE
+   * @return true if a replica was served
+   */
+  private boolean serveReplica(SeekMessage message) {
+    String filename = Paths.get(message.getPath()).getFileName().toString();
+    if (!replicas.contains(filename)) {
+      return false;
+    }
+    ServeFile response = prepareResponse(message, "replica", filename,
+        () -> replicas.serve(filename));
+    if (!response.hasContent()) {
+      return false;
+    }
+    connections.send(message.getRequestAddress(), response, false);
+    logger.debug("Served replica of " + filename + ".");
+    return true;
+  }
+
+  private byte getServeType(SeekMessage message) {
+    return StoreData.HEDGE.equals(message.getOperation()) ?
+               Protocol.SERVE_HEDGE : Protocol.SERVE_FILE;
+  }
+
+  /**
+   * Hands a RETRIEVE to the nearest replica holder when the owner is already
+   * serving another file, or doesn't have the file at all. A hedged RETRIEVE
+   * is always handed off, since the owner is likely serving the original
+   * request slowly. A holder without the replica routes the RETRIEVE back,
+   * and the owner then serves it.
+   *
+   * @param message the RETRIEVE, which reached its owner
+   * @param hedge true if the RETRIEVE is a hedge
+   * @return true if the RETRIEVE was handed off
+   */
+  private boolean offloadRetrieve(SeekMessage message, boolean hedge) {
+    String filename = Paths.get(message.getPath()).getFileName().toString();
+    if (!hedge && files.contains(getFilePath(filename)) &&
+        activeServes.get() == 0) {
+      return false;
+    }
+    Set<PeerInformation> holders = hotKeys.getHolders(filename);
+    holders.addAll(getReplicaTargets(message.getKey()));
+    List<PeerInformation> targets = new ArrayList<>(holders);
+    targets.sort(Comparator.comparingLong(proximity::getLatency));
+    for (PeerInformation target : targets) {
+      if (connections.send(target.getAddress(), message, false)) {
+        return true;
+      }
+    }
+    return false;
   }
 
   private void deleteFile(SeekMessage message) {
     Path remotePath = Paths.get(message.getPath());
-    Path localPath = getFilePath(remotePath.getFileName().toString());
+    String filename = remotePath.getFileName().toString();
+    Path localPath = getFilePath(filename);
     logger.debug("Deleting " + localPath);
+    deleteParts(filename, getParts(filename, files.inspectFile(localPath)),
+        message.getRequestAddress());
     files.deleteFile(localPath);
+    replicas.drop(List.of(filename));
+    Set<PeerInformation> holders = hotKeys.forget(filename);
+    if (ReplicaManager.isEnabled() || HotKeyReplicator.isEnabled()) {
+      holders.addAll(getLeafNeighbors());
+      replicas.retract(filename, holders);
+    }
+  }
+
+  /**
+   * Lists the blocks or fragments of a file, if it is the manifest of a
+   * striped or erasure coded file.
+   *
+   * @param filename of the file
+   * @param content of the file, may be null
+   * @return names of its parts, empty if it isn't a manifest
+   */
+  private List<String> getParts(String filename, ByteBuffer content) {
+    List<String> parts = new ArrayList<>();
+    StripeManifest stripes = StripeManifest.parse(content);
+    ErasureManifest erasure = ErasureManifest.parse(content);
+    if (stripes != null) {
+      for (int i = 0; i < stripes.blocks(); ++i) {
+        parts.add(StripeManifest.blockName(filename, i));
+      }
+    } else if (erasure != null) {
+      repairer.forget(filename);
+      for (int i = 0; i < erasure.fragments(); ++i) {
+        parts.add(ErasureManifest.fragmentName(filename, i));
+      }
+    }
+    return parts;
+  }
+
+  /**
+   * Routes a DELETE for every block or fragment of a file, whose manifest
+   * is being deleted here.
+   *
+   * @param filename of the striped or erasure coded file
+   * @param parts names of its blocks or fragments
+   * @param requestAddress of the StoreData which asked for the DELETE
+   */
+  private void deleteParts(String filename, List<String> parts,
+      String requestAddress) {
+    if (parts.isEmpty()) {
+      return;
+    }
+    for (String part : parts) {
+      String key = StoreData.generateKeyFromFilename(part);
+      SeekMessage delete =
+          new SeekMessage(StoreData.DELETE, key, part, requestAddress);
+      delete.addHop(self);
+      if (self.equals(relay(key, delete, delete.getHops().size()))) {
+        deleteFile(delete);
+      }
+    }
+    logger.info("Deleting " + parts.size() + " parts of " + filename);
+  }
+
+  private Set<PeerInformation> getLeafNeighbors() {
+    LeafSet leafSet = routingInformation.getLeafSet();
+    Set<PeerInformation> neighbors = new HashSet<>();
+    neighbors.add(leafSet.getLeft());
+    neighbors.add(leafSet.getRight());
+    neighbors.remove(null);
+    return neighbors;
+  }
+
+  private List<PeerInformation> getReplicaTargets(String key) {
+    LeafSet leafSet = routingInformation.getLeafSet();
+    return ReplicaManager.getTargets(key, leafSet.getLeft(),
+        leafSet.getRight());
+  }
+
+  /**
+   * Sends owned files to the leaf neighbors which should hold replicas of
+   * them.
+   *
+   * @param filenames owned files
+   * @param skip neighbors already holding replicas of these files
+   */
+  private void replicate(Collection<String> filenames,
+      Collection<PeerInformation> skip) {
+    if (!ReplicaManager.isEnabled() || filenames.isEmpty()) {
+      return;
+    }
+    LeafSet leafSet = routingInformation.getLeafSet();
+    Map<PeerInformation,List<String>> assignments = new HashMap<>();
+    for (String filename : filenames) {
+      if (ErasureManifest.fragmentIndex(filename) >= 0) {
+        continue; // parity protects fragments, the FragmentRepairer heals them
+      }
+      String key = StoreData.generateKeyFromFilename(filename);
+      for (PeerInformation target : ReplicaManager.getTargets(key,
+          leafSet.getLeft(), leafSet.getRight())) {
+        if (!skip.contains(target)) {
+          assignments.computeIfAbsent(target, k -> new ArrayList<>())
+                     .add(filename);
+        }
+      }
+    }
+    replicas.replicate(assignments);
+  }
+
+  /**
+   * Runs after each batch of topology changes. Replicas of keys this peer
+   * now owns are promoted, and replicas it should no longer hold are
+   * dropped. If the leaf neighbors changed, owned files are copied to the
+   * neighbors which didn't hold replicas before.
+   */
+  private synchronized void reconcileReplicas() {
+    if (!ReplicaManager.isEnabled() || !routingInformation.isInitialized()) {
+      return;
+    }
+    List<String> promoted =
+        replicas.reconcile(routingInformation::lookup, this::holdsReplica,
+            this::ownedByNeighbor);
+    replicate(promoted, Set.of());
+
+    LeafSet leafSet = routingInformation.getLeafSet();
+    PeerInformation left = leafSet.getLeft();
+    PeerInformation right = leafSet.getRight();
+    if (Objects.equals(left, replicaLeft) &&
+        Objects.equals(right, replicaRight)) {
+      return;
+    }
+    Set<PeerInformation> previous = new HashSet<>();
+    previous.add(replicaLeft);
+    previous.add(replicaRight);
+    replicaLeft = left;
+    replicaRight = right;
+    List<String> owned = new ArrayList<>();
+    for (Path path : files.getFileSet()) {
+      String filename = path.getFileName().toString();
+      String key = StoreData.generateKeyFromFilename(filename);
+      if (self.equals(routingInformation.lookup(key)) &&
+          !promoted.contains(filename)) {
+        owned.add(filename);
+      }
+    }
+    replicate(owned, previous);
+  }
+
+  /**
+   * Checks if this peer should hold a replica of a key, which it doesn't
+   * own. Its owner must be a leaf neighbor, and this peer must be among the
+   * replicationFactor peers nearest the key.
+   *
+   * @param key hex key of the file
+   * @return true if the replica should be kept
+   */
+  private boolean holdsReplica(String key) {
+    if (!ownedByNeighbor(key)) {
+      return false;
+    }
+    int distance = self.distanceTo(key);
+    int closer = 0;
+    for (PeerInformation peer : routingInformation.getPeerSet(false)) {
+      if (peer.distanceTo(key) < distance) {
+        ++closer;
+      }
+    }
+    return closer < ApplicationProperties.replicationFactor;
+  }
+
+  private boolean ownedByNeighbor(String key) {
+    PeerInformation owner = routingInformation.lookup(key);
+    LeafSet leafSet = routingInformation.getLeafSet();
+    return owner.equals(leafSet.getLeft()) || owner.equals(leafSet.getRight());
   }
 
   // Assumes that the Peer has already been initialized
   private Path getFilePath(String filename) {
-    return Paths.get(File.separator, "tmp", "peer-" + self.getIdentifier(),
-        filename);
+    return getDirectory().resolve(filename);
+  }
+
+  private Path getDirectory() {
+    return Paths.get(File.separator, "tmp", "peer-" + self.getIdentifier());
   }
 
   /**
@@ -406,6 +1319,10 @@ public class Peer implements Node {
           files.displayFiles();
           break;
 
+        case "s", "stats":
+          displayStatistics();
+          break;
+
         case "l", "leave":
           leave();
           break interactLoop;
@@ -423,6 +1340,32 @@ public class Peer implements Node {
     System.exit(0);
   }
 
+  /**
+   * Print counters kept by the Peer's background components.
+   */
+  private void displayStatistics() {
+    System.out.printf("%2s%-9s : %s%n", "", "topology",
+        topology.getStatistics());
+    System.out.printf("%2s%-9s : %s%n", "", "learned",
+        learner.getLearnedCount() + " peers from observed traffic");
+    System.out.printf("%2s%-9s : %s%n", "", "migration",
+        migrator.getStatistics());
+    System.out.printf("%2s%-9s : %s%n", "", "storage",
+        files.getStatistics());
+    System.out.printf("%2s%-9s : %s%n", "", "cache",
+        files.getCacheStatistics());
+    System.out.printf("%2s%-9s : %s%n", "", "replicas",
+        replicas.getStatistics());
+    System.out.printf("%2s%-9s : %s%n", "", "route",
+        routeCache.getStatistics());
+    System.out.printf("%2s%-9s : %s%n", "", "hot keys",
+        hotKeys.getStatistics());
+    System.out.printf("%2s%-9s : %s%n", "", "serving",
+        serving.getStatistics());
+    System.out.printf("%2s%-9s : %s%n", "", "erasure",
+        repairer.getStatistics());
+  }
+
   /**
    * Print a list of valid commands for the user.
    */
@@ -431,6 +1374,8 @@ public class Peer implements Node {
         "print routing table and leaf set for this node");
     System.out.printf("%2s%-9s : %s%n", "", "f[iles]",
         "print the list of files stored at this node, with their read count");
+    System.out.printf("%2s%-9s : %s%n", "", "s[tats]",
+        "print counters for background routing and storage work");
     System.out.printf("%2s%-9s : %s%n", "", "l[eave]", "leave the network");
     System.out.printf("%2s%-9s : %s%n", "", "h[elp]",
         "print a list of valid commands");
@@ -438,10 +1383,17 @@ public class Peer implements Node {
 
   /**
    * Gracefully leaves the P2P network. First, sends a deregistration request to
-   * the Discovery, then updates the leaf sets of each leaf, and attempts to
-   * relocate local files to appropriate replacement peers.
+   * the Discovery, then updates the leaf sets of each leaf, and hands local
+   * files off to the peers which will own them. Leaving completes as soon as
+   * every file has been acknowledged.
    */
   private void leave() {
+    long start = System.nanoTime();
+    scheduler.shutdownNow();
+    hotKeys.shutdown();
+    repairer.shutdown();
+    topology.shutdown();
+
     logger.debug("Notifying the Discovery node of deregistration.");
     PeerMessage deregister = new PeerMessage(Protocol.DEREGISTER, self);
     connections.send(ApplicationProperties.discoveryAddress, deregister, false);
@@ -452,17 +1404,18 @@ public class Peer implements Node {
     logger.debug("Notifying peers of exit.");
     notifyPeersOfExit();
 
-    // Sleep to wait for any remaining messages to be processed
     try {
-      logger.debug("Waiting 1 second for remaining messages to be processed.");
-      Thread.sleep(1000);
-      migrateFilesBeforeLeaving();
-      logger.debug("Waiting 1 second for sockets to clear.");
-      Thread.sleep(1000);
+      handoffFilesBeforeLeaving();
     } catch (InterruptedException e) {
       Thread.currentThread().interrupt();
       throw new RuntimeException(e);
     }
+    migrator.shutdown();
+    replicas.close();
+    routeCache.clear();
+    files.close();
+    logger.info("Left the network in " + (System.nanoTime() - start)/1_000_000 +
+                " ms.");
   }
 
   private void updateNeighboringLeafSets() {
@@ -487,29 +1440,43 @@ public class Peer implements Node {
     }
   }
 
-  private void migrateFilesBeforeLeaving() {
+  /**
+   * Hands every local file off to the closest peer we know of, which is its
+   * owner once we're gone. Files are sent to several peers in parallel. If
+   * some destination doesn't acknowledge its files, it is dropped and its
+   * files are reassigned to the next closest peers, for up to
+   * HANDOFF_ROUNDS rounds.
+   *
+   * @throws InterruptedException if interrupted waiting for acknowledgements
+   */
+  private void handoffFilesBeforeLeaving() throws InterruptedException {
     Set<PeerInformation> peerSet = routingInformation.getPeerSet(false);
-    Set<Path> localFiles = files.getFileSet();
-    for (Path path : localFiles) {
-      byte[] content = files.readFile(path);
-      if (content != null) {
+    Set<Path> remaining = new HashSet<>(files.getFileSet());
+    int total = remaining.size();
+    for (int round = 0; round < HANDOFF_ROUNDS && !remaining.isEmpty() &&
+                        !peerSet.isEmpty(); ++round) {
+      Map<PeerInformation,List<String>> assignments = new HashMap<>();
+      for (Path path : remaining) {
         String filename = path.getFileName().toString();
         String key = StoreData.generateKeyFromFilename(filename);
-        RelayFile message = new RelayFile(key, filename, content, "");
         PeerInformation closestPeer = getClosestPeer(key, peerSet);
-        while (closestPeer != null &&
-               !connections.send(closestPeer.getAddress(), message, false)) {
-          peerSet.remove(closestPeer);
-          closestPeer = getClosestPeer(key, peerSet);
-        }
-        if (closestPeer != null) {
-          logger.info("File " + path.getFileName() + " sent to " +
-                      closestPeer.getIdentifier());
-        } else {
-          logger.info("File " + path.getFileName() + " is permanently lost.");
-        }
+        assignments.computeIfAbsent(closestPeer, k -> new ArrayList<>())
+                   .add(filename);
+      }
+      remaining = migrator.handoff(assignments,
+          ApplicationProperties.leaveConcurrency,
+          ApplicationProperties.leaveTimeout);
+      for (Path path : remaining) {
+        String filename = path.getFileName().toString();
+        peerSet.remove(getClosestPeer(
+            StoreData.generateKeyFromFilename(filename), peerSet));
       }
     }
+    logger.info((total - remaining.size()) + " of " + total +
+                " files were handed off.");
+    for (Path path : remaining) {
+      logger.info("File " + path.getFileName() + " is permanently lost.");
+    }
   }
 
   private PeerInformation getClosestPeer(String key,
@@ -0,0 +1,349 @@
+package cs555.system.node;
+
+import cs555.system.transport.TCPConnectionCache;
+import cs555.system.util.ApplicationProperties;
+import cs555.system.util.FileSynchronizer;
+import cs555.system.util.Logger;
+import cs555.system.util.PeerInformation;
+import cs555.system.wireformats.BulkTransfer;
+import cs555.system.wireformats.MigrationMessage;
+import cs555.system.wireformats.Protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Keeps copies of files owned by this peer's leaf neighbors, and pushes
+ * copies of the files this peer owns to them. With a replicationFactor of k,
+ * each file is held by its owner and by the k - 1 leaf neighbors of the owner
+ * nearest the file's key, so the neighbor that would take the key over if
+ * the owner failed already has the file.
+ * <p>
+ * Replicas are kept in their own FileSynchronizer, in a 'replicas' directory
+ * inside the peer's directory, so they are never mistaken for files this
+ * peer owns, and are never migrated. It shares the owned files' cache, so
+ * replicas don't get a cacheBytes budget of their own. They are sent in
+ * REPLICATE transfers, packed like migration transfers, on the manager's
+ * own thread. Extra copies of hot files arrive in HOT_REPLICATE transfers
+ * instead, and are kept for as long as their owner is a leaf neighbor,
+ * until it retracts them. That mark isn't persisted, so after a restart
+ * they are dropped like any other replica this peer isn't near enough to
+ * hold.
+ *
+ * @author hayne
+ */
+public class ReplicaManager {
+
+  private static final Logger logger = Logger.getInstance();
+  private static final String DIRECTORY = "replicas";
+  private final PeerInformation self;
+  private final FileSynchronizer files;
+  private final FileSynchronizer replicas;
+  private final TCPConnectionCache connections;
+  private final Function<String,Path> pathResolver;
+  private final ExecutorService executor;
+  private final Set<String> hot;
+  private volatile Path directory;
+  private final AtomicLong filesSent;
+  private final AtomicLong filesReceived;
+  private final AtomicLong served;
+  private final AtomicLong promoted;
+  private final AtomicLong dropped;
+
+  /**
+   * Default constructor.
+   *
+   * @param self this peer
+   * @param files files owned by this peer, which are replicated
+   * @param connections cache used to reach leaf neighbors
+   * @param pathResolver maps a filename to the path of an owned file
+   */
+  public ReplicaManager(PeerInformation self, FileSynchronizer files,
+      TCPConnectionCache connections, Function<String,Path> pathResolver) {
+    this.self = self;
+    this.files = files;
+    this.replicas =
+        new FileSynchronizer(StoreData::generateKeyFromFilename, files);
+    this.connections = connections;
+    this.pathResolver = pathResolver;
+    this.executor = Executors.newSingleThreadExecutor();
+    this.hot = ConcurrentHashMap.newKeySet();
+    this.filesSent = new AtomicLong(0);
+    this.filesReceived = new AtomicLong(0);
+    this.served = new AtomicLong(0);
+    this.promoted = new AtomicLong(0);
+    this.dropped = new AtomicLong(0);
+  }
+
+  public static boolean isEnabled() {
+    return ApplicationProperties.replicationFactor > 1;
+  }
+
+  /**
+   * Recovers replicas left by a previous run. Called once the peer's
+   * identifier is settled.
+   *
+   * @param peerDirectory the peer's directory
+   */
+  public void recover(Path peerDirectory) {
+    directory = peerDirectory.resolve(DIRECTORY);
+    replicas.recover(directory, this::getReplicaPath);
+  }
+
+  private Path getReplicaPath(String filename) {
+    return directory.resolve(filename);
+  }
+
+  /**
+   * Chooses the leaf neighbors which should hold replicas of a key, nearest
+   * the key first.
+   *
+   * @param key hex key of the file
+   * @param left this peer's left leaf neighbor, may be null
+   * @param right this peer's right leaf neighbor, may be null
+   * @return up to replicationFactor - 1 distinct neighbors
+   */
+  public static List<PeerInformation> getTargets(String key,
+      PeerInformation left, PeerInformation right) {
+    List<PeerInformation> neighbors = new ArrayList<>(2);
+    if (left != null) {
+      neighbors.add(left);
+    }
+    if (right != null && !right.equals(left)) {
+      neighbors.add(right);
+    }
+    neighbors.sort(Comparator.comparingInt(peer -> peer.distanceTo(key)));
+    int count = Math.min(neighbors.size(),
+        ApplicationProperties.replicationFactor - 1);
+    return neighbors.subList(0, count);
+  }
+
+  /**
+   * Sends copies of owned files to the peers assigned to hold them, in the
+   * background. Files each target already holds are skipped on arrival.
+   *
+   * @param assignments filenames to send to each target
+   */
+  public void replicate(Map<PeerInformation,List<String>> assignments) {
+    replicate(assignments, false);
+  }
+
+  /**
+   * Sends copies of owned files to the peers assigned to hold them, in the
+   * background.
+   *
+   * @param assignments filenames to send to each target
+   * @param hot true if the copies are extra replicas of hot files
+   */
+  public void replicate(Map<PeerInformation,List<String>> assignments,
+      boolean hot) {
+    if (assignments.isEmpty()) {
+      return;
+    }
+    byte type = hot ? Protocol.HOT_REPLICATE : Protocol.REPLICATE;
+    executor.submit(() -> assignments.forEach(
+        (target, filenames) -> send(target, filenames, type)));
+  }
+
+  /**
+   * Packs files into transfers of at most migrationBatchBytes each.
+   *
+   * @param target peer to hold the replicas
+   * @param filenames owned files to copy
+   * @param type REPLICATE or HOT_REPLICATE
+   */
+  private void send(PeerInformation target, List<String> filenames,
+      byte type) {
+    BulkTransfer transfer = new BulkTransfer(type, self);
+    long batchBytes = 0;
+    for (String filename : filenames) {
+      byte[] content = files.readFile(pathResolver.apply(filename));
+      if (content == null) {
+        continue;
+      }
+      long limit = ApplicationProperties.migrationBatchBytes;
+      if (transfer.size() > 0 && batchBytes + content.length > limit) {
+        send(target, transfer);
+        transfer = new BulkTransfer(type, self);
+        batchBytes = 0;
+      }
+      transfer.addFile(filename, content);
+      batchBytes += content.length;
+    }
+    if (transfer.size() > 0) {
+      send(target, transfer);
+    }
+  }
+
+  private void send(PeerInformation target, BulkTransfer transfer) {
+    if (connections.send(target.getAddress(), transfer, false)) {
+      filesSent.addAndGet(transfer.size());
+      logger.debug(transfer.size() + " replicas sent to " +
+                   target.getIdentifier() + ".");
+    } else {
+      logger.debug("Replicas couldn't be sent to " + target.getIdentifier());
+    }
+  }
+
+  /**
+   * Stores the replicas in a REPLICATE or HOT_REPLICATE transfer.
+   *
+   * @param transfer replicas sent by an owner
+   */
+  public void receive(BulkTransfer transfer) {
+    if (directory == null) {
+      return; // not registered yet
+    }
+    int stored = 0;
+    for (int i = 0; i < transfer.size(); ++i) {
+      String filename = transfer.getFilenames().get(i);
+      if (transfer.getType() == Protocol.HOT_REPLICATE) {
+        hot.add(filename);
+      }
+      Path path = getReplicaPath(filename);
+      if (!replicas.contains(path) &&
+          replicas.writeFile(path, transfer.getContents().get(i))) {
+        ++stored;
+      }
+    }
+    filesReceived.addAndGet(stored);
+    logger.debug(stored + " replicas stored from " +
+                 transfer.getSender().getIdentifier() + ".");
+  }
+
+  /**
+   * Tells peers to delete their replicas of a file.
+   *
+   * @param filename of the file
+   * @param holders peers which may hold replicas
+   */
+  public void retract(String filename, Collection<PeerInformation> holders) {
+    MigrationMessage drop = new MigrationMessage(Protocol.REPLICA_DROP, self,
+        List.of(filename));
+    for (PeerInformation holder : holders) {
+      connections.send(holder.getAddress(), drop, false);
+    }
+  }
+
+  public void drop(List<String> filenames) {
+    for (String filename : filenames) {
+      drop(filename);
+    }
+  }
+
+  private void drop(String filename) {
+    if (directory == null) {
+      return;
+    }
+    hot.remove(filename);
+    Path path = getReplicaPath(filename);
+    if (replicas.contains(path)) {
+      replicas.deleteFile(path);
+      dropped.incrementAndGet();
+    }
+  }
+
+  public boolean contains(String filename) {
+    return directory != null && replicas.contains(getReplicaPath(filename));
+  }
+
+  /**
+   * Returns a replica's content for serving a RETRIEVE.
+   *
+   * @param filename of the file
+   * @return buffer over the content, null if there's no such replica
+   */
+  public ByteBuffer serve(String filename) {
+    if (directory == null) {
+      return null;
+    }
+    ByteBuffer content = replicas.mapFile(getReplicaPath(filename));
+    if (content != null) {
+      served.incrementAndGet();
+    }
+    return content;
+  }
+
+  /**
+   * Reconciles replicas with the current routing information. A replica
+   * whose key this peer now owns, because its owner left or failed, is
+   * promoted to an owned file. A replica this peer is no longer one of the
+   * replicationFactor peers closest to is deleted, unless it is an extra
+   * replica of a hot file whose owner is still a leaf neighbor.
+   *
+   * @param owner maps a hex key to the peer that owns it
+   * @param holdsReplica tests if this peer should hold a replica of a key
+   * @param ownedByNeighbor tests if a key is owned by a leaf neighbor
+   * @return filenames that were promoted
+   */
+  public List<String> reconcile(Function<String,PeerInformation> owner,
+      Predicate<String> holdsReplica, Predicate<String> ownedByNeighbor) {
+    List<String> promotions = new ArrayList<>();
+    if (directory == null) {
+      return promotions;
+    }
+    for (Path path : new ArrayList<>(replicas.getFileSet())) {
+      String filename = path.getFileName().toString();
+      String key = StoreData.generateKeyFromFilename(filename);
+      if (self.equals(owner.apply(key))) {
+        if (promote(path, filename)) {
+          promotions.add(filename);
+        }
+      } else if (hot.contains(filename) ? !ownedByNeighbor.test(key) :
+                 !holdsReplica.test(key)) {
+        drop(filename);
+      }
+    }
+    if (!promotions.isEmpty()) {
+      logger.info("Promoted " + promotions.size() + " replicas to owned " +
+                  "files.");
+    }
+    return promotions;
+  }
+
+  /**
+   * Copies a replica into the owned files, then deletes the replica.
+   *
+   * @param path of the replica
+   * @param filename of the file
+   * @return true if this peer now owns the file
+   */
+  private boolean promote(Path path, String filename) {
+    Path owned = pathResolver.apply(filename);
+    if (!files.contains(owned)) {
+      byte[] content = replicas.readFile(path);
+      if (content == null || !files.writeFile(owned, content)) {
+        return false;
+      }
+    }
+    replicas.deleteFile(path);
+    hot.remove(filename);
+    promoted.incrementAndGet();
+    return true;
+  }
+
+  public void close() {
+    executor.shutdownNow();
+    replicas.close();
+  }
+
+  /**
+   * Returns a one-line summary of replication.
+   *
+   * @return statistics string
+   */
+  public String getStatistics() {
+    int held = directory == null ? 0 : replicas.getFileSet().size();
+    return "factor " + ApplicationProperties.replicationFactor + ", held " +
+           held + ", sent " + filesSent.get() + ", received " +
+           filesReceived.get() + ", served " + served.get() + ", promoted " +
+           promoted.get() + ", dropped " + dropped.get();
+  }
+}
@@ -4,23 +4,46 @@ import cs555.system.transport.TCPConnection;
 import cs555.system.transport.TCPConnectionCache;
 import cs555.system.transport.TCPServerThread;
 import cs555.system.util.ApplicationProperties;
+import cs555.system.util.ErasureManifest;
 import cs555.system.util.HexUtilities;
+import cs555.system.util.LatencyWindow;
 import cs555.system.util.Logger;
 import cs555.system.util.PeerInformation;
+import cs555.system.util.StripeManifest;
 import cs555.system.wireformats.*;
 
 import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.Scanner;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Stream;
 
 public class StoreData implements Node {
@@ -29,15 +52,220 @@ public class StoreData implements Node {
   public final static String STORE = "STORE";
   public final static String RETRIEVE = "RETRIEVE";
   public final static String DELETE = "DELETE";
+  public final static String HEDGE = "HEDGE";
+  private static final int ENTRY_PEERS = 8; // recent entry peers kept
+  private static final int MIN_SAMPLES = 20; // before the delay adapts
+  private static final long DEFAULT_HEDGE_DELAY = 100; // ms
+  private static final long MIN_HEDGE_DELAY = 5; // ms
   private final String host;
   private final int port;
   private final TCPConnectionCache connections;
   private final ConcurrentSkipListSet<Path> storedFiles;
   private final BlockingQueue<Operation> ops;
+  private final ConcurrentSkipListMap<String,Retrieval> retrievals;
+  private final AtomicLong nextRetrieval;
+  private final List<PeerInformation> entryPeers;
+  private final LatencyWindow latencies;
+  private final LatencyWindow partLatencies;
+  private final ScheduledExecutorService scheduler;
+  private final Random random;
+  private final AtomicLong retrieves;
+  private final AtomicLong hedges;
+  private final AtomicLong hedgeWins;
+  private final AtomicLong discarded;
+  private final AtomicLong expired;
+  private final ExecutorService blockTransfers;
+  private final ConcurrentHashMap<String,Upload> uploads;
+  private final ConcurrentHashMap<String,Assembly> assemblies;
+  private final ConcurrentHashMap<String,Decoding> decodings;
   private Path workingDirectory;
 
   public record Operation(String type, Path path) {}
 
+  /**
+   * A RETRIEVE waiting for its file. It is answered by whichever ServeFile
+   * arrives first, from the original request or its hedge, and gives up
+   * after retrieveTimeout.
+   * <p>
+   * Each RETRIEVE is keyed by its filename and a sequence number, so that
+   * retrieving a file again while it is still on its way doesn't replace
+   * the first request. Responses only carry the filename, so each one
+   * answers the oldest RETRIEVE for its file; the content is the same
+   * either way.
+   */
+  private static class Retrieval {
+    private final String key;
+    private final Path path;
+    private final PeerInformation entry;
+    private final LatencyWindow latencies;
+    private final long start;
+    private ScheduledFuture<?> hedge;
+    private ScheduledFuture<?> timeout;
+    private boolean hedged;
+    private boolean missed;
+
+    private Retrieval(String filename, long sequence, Path path,
+        PeerInformation entry, LatencyWindow latencies) {
+      this.key = requestKey(filename, sequence);
+      this.path = path;
+      this.entry = entry;
+      this.latencies = latencies;
+      this.start = System.nanoTime();
+    }
+
+    private synchronized void cancel() {
+      if (hedge != null) {
+        hedge.cancel(false);
+      }
+      if (timeout != null) {
+        timeout.cancel(false);
+      }
+    }
+
+    /**
+     * Called when a response arrives without the file. If the other request
+     * is still outstanding, it might yet find the file.
+     *
+     * @return true to keep waiting for the other response
+     */
+    private synchronized boolean awaitOther() {
+      if (hedged && !missed) {
+        missed = true;
+        return true;
+      }
+      return false;
+    }
+  }
+
+  /**
+   * A striped file being stored, waiting for every block and the manifest
+   * to be acknowledged.
+   */
+  private static class Upload {
+    private final long length;
+    private final long start = System.nanoTime();
+    private final AtomicInteger remaining;
+    private volatile boolean failed;
+
+    private Upload(long length, int writes) {
+      this.length = length;
+      this.remaining = new AtomicInteger(writes);
+    }
+  }
+
+  /**
+   * A striped file being retrieved, whose blocks are written into place in
+   * a partial file as they arrive, so the file is never held in memory. The
+   * partial file is renamed once every block has arrived.
+   */
+  private static class Assembly {
+    private final StripeManifest manifest;
+    private final Path partial;
+    private final Path destination;
+    private final FileChannel channel;
+    private final BitSet received;
+    private final long start = System.nanoTime();
+
+    private Assembly(StripeManifest manifest, Path destination)
+        throws IOException {
+      this.manifest = manifest;
+      this.destination = destination;
+      this.partial = destination.resolveSibling(
+          destination.getFileName() + ".part");
+      this.channel = FileChannel.open(partial, StandardOpenOption.CREATE,
+          StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+      this.received = new BitSet(manifest.blocks());
+    }
+
+    /**
+     * Writes a block at its offset in the partial file.
+     *
+     * @param block index of the block
+     * @param data content of the block
+     * @return true if this was the last block missing
+     * @throws IOException if the block couldn't be written
+     */
+    private synchronized boolean add(int block, byte[] data)
+        throws IOException {
+      if (received.get(block)) {
+        return false;
+      }
+      ByteBuffer buffer = ByteBuffer.wrap(data, 0,
+          Math.min(data.length, manifest.blockLength(block)));
+      long position = (long) block*manifest.blockBytes();
+      while (buffer.hasRemaining()) {
+        channel.write(buffer, position + buffer.position());
+      }
+      received.set(block);
+      return received.cardinality() == manifest.blocks();
+    }
+
+    /**
+     * Closes the partial file, and renames it into place if it's complete.
+     *
+     * @param complete false to delete the partial file instead
+     * @throws IOException if it couldn't be closed, renamed or deleted
+     */
+    private synchronized void finish(boolean complete) throws IOException {
+      channel.close();
+      if (complete) {
+        Files.move(partial, destination, StandardCopyOption.REPLACE_EXISTING);
+      } else {
+        Files.deleteIfExists(partial);
+      }
+    }
+  }
+
+  /**
+   * An erasure coded file being retrieved. The data fragments are requested
+   * first, and a parity fragment is requested for each one that is missing.
+   */
+  private static class Decoding {
+    private final ErasureManifest manifest;
+    private final byte[][] fragments;
+    private final long start = System.nanoTime();
+    private int requested;
+    private int received;
+    private int missing;
+
+    private Decoding(ErasureManifest manifest) {
+      this.manifest = manifest;
+      this.fragments = new byte[manifest.fragments()][];
+      this.requested = manifest.dataFragments();
+    }
+
+    /**
+     * Keeps a fragment which arrived.
+     *
+     * @param fragment index of the fragment
+     * @param content of the fragment
+     * @return true if this completed the k fragments needed
+     */
+    private synchronized boolean add(int fragment, byte[] content) {
+      if (fragments[fragment] != null ||
+          received == manifest.dataFragments()) {
+        return false;
+      }
+      fragments[fragment] = content;
+      return ++received == manifest.dataFragments();
+    }
+
+    /**
+     * Records a fragment which couldn't be retrieved, and picks the next
+     * fragment to request in its place.
+     *
+     * @return index of the fragment to request, -1 if there are none left,
+     * or -2 if enough fragments are still outstanding
+     */
+    private synchronized int replace() {
+      ++missing;
+      if (requested < manifest.fragments()) {
+        return requested++;
+      }
+      return requested - missing >= manifest.dataFragments() ? -2 : -1;
+    }
+  }
+
   public StoreData(String host, int port) {
     this.host = host;
     this.port = port;
@@ -45,7 +273,23 @@ public class StoreData implements Node {
     this.storedFiles = new ConcurrentSkipListSet<>();
     this.workingDirectory = Paths.get(System.getProperty("user.dir"), "data");
     this.ops = new LinkedBlockingQueue<Operation>();
-
+    this.retrievals = new ConcurrentSkipListMap<>();
+    this.nextRetrieval = new AtomicLong(0);
+    this.entryPeers = new ArrayList<>();
+    this.latencies = new LatencyWindow(200);
+    this.partLatencies = new LatencyWindow(200);
+    this.scheduler = Executors.newSingleThreadScheduledExecutor();
+    this.random = new Random();
+    this.retrieves = new AtomicLong(0);
+    this.hedges = new AtomicLong(0);
+    this.hedgeWins = new AtomicLong(0);
+    this.discarded = new AtomicLong(0);
+    this.expired = new AtomicLong(0);
+    this.blockTransfers = Executors.newFixedThreadPool(
+        Math.max(1, ApplicationProperties.stripeConcurrency));
+    this.uploads = new ConcurrentHashMap<>();
+    this.assemblies = new ConcurrentHashMap<>();
+    this.decodings = new ConcurrentHashMap<>();
   }
 
   public static void main(String[] args) {
@@ -89,7 +333,7 @@ public class StoreData implements Node {
         writeHandler(event);
         break;
 
-      case Protocol.SERVE_FILE:
+      case Protocol.SERVE_FILE, Protocol.SERVE_HEDGE:
         receiveFile(event);
         break;
 
@@ -106,6 +350,7 @@ public class StoreData implements Node {
         logger.info("Cannot " + op.type() + " " + op.path() + ". No peers.");
         storedFiles.clear();
       } else {
+        rememberEntryPeer(peer);
         initiateOperation(peer, op);
       }
     } else {
@@ -134,7 +379,156 @@ public class StoreData implements Node {
           path + ", whose generated identifier is " + key + ".");
       if (op.type().equals(DELETE)) {
         storedFiles.removeIf(p -> p.getFileName().toString().equals(filename));
+      } else if (op.type().equals(RETRIEVE)) {
+        startRetrieval(filename, op.path(), peer, latencies);
+      }
+    }
+  }
+
+  private void rememberEntryPeer(PeerInformation peer) {
+    synchronized(entryPeers) {
+      entryPeers.remove(peer);
+      entryPeers.add(peer);
+      if (entryPeers.size() > ENTRY_PEERS) {
+        entryPeers.remove(0);
+      }
+    }
+  }
+
+  /**
+   * Keys a RETRIEVE so that those for the same file sort together, oldest
+   * first. Filenames can't contain a NUL, so no prefix is ambiguous.
+   *
+   * @param filename of the file being retrieved
+   * @param sequence number of the RETRIEVE
+   * @return key of the RETRIEVE
+   */
+  private static String requestKey(String filename, long sequence) {
+    return String.format("%s\0%016x", filename, sequence);
+  }
+
+  /**
+   * Finds the oldest outstanding RETRIEVE for a file.
+   *
+   * @param filename of the file
+   * @return the RETRIEVE, null if there is none
+   */
+  private Retrieval oldestRetrieval(String filename) {
+    String prefix = filename + '\0';
+    Map.Entry<String,Retrieval> entry = retrievals.ceilingEntry(prefix);
+    return entry != null && entry.getKey().startsWith(prefix) ?
+        entry.getValue() : null;
+  }
+
+  /**
+   * Tracks a RETRIEVE which was sent, and schedules its hedge and timeout.
+   * Blocks and fragments are much smaller than whole files, so their
+   * latencies are kept in a window of their own, and don't pull down the
+   * hedge delay of whole files.
+   *
+   * @param filename of the file being retrieved
+   * @param path as given by the user
+   * @param entry peer the RETRIEVE was sent to
+   * @param latencies window the RETRIEVE is hedged by, and recorded in
+   * @return the tracked RETRIEVE
+   */
+  private Retrieval startRetrieval(String filename, Path path,
+      PeerInformation entry, LatencyWindow latencies) {
+    retrieves.incrementAndGet();
+    Retrieval retrieval = new Retrieval(filename,
+        nextRetrieval.getAndIncrement(), path, entry, latencies);
+    retrievals.put(retrieval.key, retrieval);
+    long delay = getHedgeDelay(latencies);
+    synchronized(retrieval) {
+      if (delay >= 0) {
+        retrieval.hedge = scheduler.schedule(
+            () -> hedge(filename, retrieval), delay, TimeUnit.MILLISECONDS);
       }
+      retrieval.timeout = scheduler.schedule(
+          () -> expire(filename, retrieval),
+          ApplicationProperties.retrieveTimeout, TimeUnit.MILLISECONDS);
+    }
+    return retrieval;
+  }
+
+  /**
+   * Gives up on a RETRIEVE which got no usable response in time. A block
+   * or fragment is treated as missing.
+   *
+   * @param filename of the file being retrieved
+   * @param retrieval the outstanding RETRIEVE
+   */
+  private void expire(String filename, Retrieval retrieval) {
+    if (!retrievals.remove(retrieval.key, retrieval)) {
+      return;
+    }
+    retrieval.cancel();
+    expired.incrementAndGet();
+    logger.info("No response for " + filename + " within " +
+                ApplicationProperties.retrieveTimeout + " ms.");
+    if (parentFileOf(filename, assemblies) != null ||
+        parentFileOf(filename, decodings) != null) {
+      deliver(filename, null);
+    }
+  }
+
+  /**
+   * Chooses how long to wait for a file before hedging. With a hedgeDelay of
+   * zero, the delay is the 95th percentile of recent retrieves, so only the
+   * slowest few requests in twenty are hedged.
+   *
+   * @param latencies of recent retrieves of the same kind
+   * @return milliseconds to wait, negative if hedging is disabled
+   */
+  private long getHedgeDelay(LatencyWindow latencies) {
+    long configured = ApplicationProperties.hedgeDelay;
+    if (configured != 0) {
+      return configured;
+    }
+    if (latencies.size() < MIN_SAMPLES) {
+      return DEFAULT_HEDGE_DELAY;
+    }
+    return Math.max(MIN_HEDGE_DELAY, latencies.percentile(95)/1_000_000);
+  }
+
+  /**
+   * Sends a second RETRIEVE for a file which hasn't arrived yet, marked as a
+   * hedge so that the owner hands it to a replica. It goes through a
+   * different entry peer than the original where possible, so it takes a
+   * different route, and is sent straight away if one is known.
+   *
+   * @param filename of the file being retrieved
+   * @param retrieval the outstanding RETRIEVE
+   */
+  private void hedge(String filename, Retrieval retrieval) {
+    synchronized(retrieval) {
+      if (retrievals.get(retrieval.key) != retrieval || retrieval.hedged) {
+        return;
+      }
+      retrieval.hedged = true;
+    }
+    hedges.incrementAndGet();
+    PeerInformation peer = null;
+    synchronized(entryPeers) {
+      List<PeerInformation> others = new ArrayList<>(entryPeers);
+      others.remove(retrieval.entry);
+      if (!others.isEmpty()) {
+        peer = others.get(random.nextInt(others.size()));
+      }
+    }
+    if (peer == null) {
+      peer = retrieval.entry;
+    }
+    String key = generateKeyFromFilename(filename);
+    SeekMessage message = new SeekMessage(HEDGE, key,
+        retrieval.path.toString(), host + ":" + port);
+    if (connections.send(peer.getAddress(), message, false)) {
+      logger.info("Hedged RETRIEVE of " + filename + " through " +
+                  peer.getIdentifier() + ".");
+    } else {
+      ops.add(new Operation(HEDGE, retrieval.path));
+      GeneralMessage select = new GeneralMessage(Protocol.SELECT_REQUEST);
+      connections.send(ApplicationProperties.discoveryAddress, select, true);
     }
   }
 
@@ -149,6 +543,15 @@ public class StoreData implements Node {
     Path path = Paths.get(pathString);
     byte[] content;
     try {
+      if (ApplicationProperties.erasureDataFragments > 0) {
+        storeErasureCoded(path, connection);
+        return;
+      }
+      int stripeBytes = ApplicationProperties.stripeBytes;
+      if (stripeBytes > 0 && Files.size(path) > stripeBytes) {
+        storeStriped(path, connection);
+        return;
+      }
       content = Files.readAllBytes(path);
     } catch (IOException e) {
       logger.info("Unable to read " + path + ". " + e.getMessage());
@@ -169,6 +572,176 @@ public class StoreData implements Node {
     }
   }
 
+  /**
+   * Stores a large file as fixed-size blocks, each routed to its own owner
+   * through one of the recently used entry peers, stripeConcurrency at a
+   * time. Each block is read straight from its offset in the file, so the
+   * whole file is never in memory at once. The manifest is sent to the peer
+   * which accepted the file once every block has been sent, so a RETRIEVE
+   * can't find a manifest whose blocks aren't there yet.
+   *
+   * @param path of the file
+   * @param connection to the peer which accepted the file
+   * @throws IOException if the file's size can't be read
+   */
+  private void storeStriped(Path path, TCPConnection connection)
+      throws IOException {
+    String filename = path.getFileName().toString();
+    StripeManifest manifest =
+        StripeManifest.of(ApplicationProperties.stripeBytes, Files.size(path));
+    List<PeerInformation> entries = getEntryPeers();
+    Upload upload = new Upload(manifest.length(), manifest.blocks() + 1);
+    uploads.put(filename, upload);
+
+    List<Callable<Boolean>> blocks = new ArrayList<>(manifest.blocks());
+    for (int i = 0; i < manifest.blocks(); ++i) {
+      int block = i;
+      PeerInformation entry = entries.get(block%entries.size());
+      blocks.add(() -> sendBlock(path, manifest, block, entry));
+    }
+    if (!sendAll(blocks)) {
+      uploads.remove(filename, upload);
+      logger.info("Failed to send every block of " + filename + ".");
+      return;
+    }
+    sendManifest(path, manifest.toBytes(), connection);
+    logger.info("Sent " + filename + " to peers as " + manifest.blocks() +
+                " blocks.");
+  }
+
+  /**
+   * Stores a file as k data and m parity fragments, each routed to its own
+   * owner through one of the recently used entry peers. Like a striped
+   * file, the manifest is sent last, to the peer which accepted the file.
+   *
+   * @param path of the file
+   * @param connection to the peer which accepted the file
+   * @throws IOException if the file can't be read
+   */
+  private void storeErasureCoded(Path path, TCPConnection connection)
+      throws IOException {
+    String filename = path.getFileName().toString();
+    byte[] content = Files.readAllBytes(path);
+    ErasureManifest manifest =
+        new ErasureManifest(ApplicationProperties.erasureDataFragments,
+            ApplicationProperties.erasureParityFragments, content.length);
+    long start = System.nanoTime();
+    byte[][] fragments = manifest.getCode().encode(content);
+    logger.debug("Encoded " + filename + ", " +
+                 describeThroughput(content.length, start) + ".");
+    List<PeerInformation> entries = getEntryPeers();
+    Upload upload = new Upload(content.length, manifest.fragments() + 1);
+    uploads.put(filename, upload);
+
+    List<Callable<Boolean>> sends = new ArrayList<>(fragments.length);
+    for (int i = 0; i < fragments.length; ++i) {
+      String name = ErasureManifest.fragmentName(filename, i);
+      RelayFile relayFile = new RelayFile(generateKeyFromFilename(name), name,
+          fragments[i], host + ":" + port);
+      PeerInformation entry = entries.get(i%entries.size());
+      sends.add(() -> connections.send(entry.getAddress(), relayFile, false));
+    }
+    if (!sendAll(sends)) {
+      uploads.remove(filename, upload);
+      logger.info("Failed to send every fragment of " + filename + ".");
+      return;
+    }
+    sendManifest(path, manifest.toBytes(), connection);
+    logger.info("Sent " + filename + " to peers as " +
+                manifest.dataFragments() + " data and " +
+                manifest.parityFragments() + " parity fragments.");
+  }
+
+  /**
+   * Runs sends of the parts of a file, stripeConcurrency at a time.
+   *
+   * @param sends each returning true if its part was sent
+   * @return true if every part was sent
+   */
+  private boolean sendAll(List<Callable<Boolean>> sends) {
+    boolean sent = true;
+    try {
+      for (Future<Boolean> result : blockTransfers.invokeAll(sends)) {
+        sent &= result.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      sent = false;
+    } catch (ExecutionException e) {
+      sent = false;
+    }
+    return sent;
+  }
+
+  private void sendManifest(Path path, byte[] manifest,
+      TCPConnection connection) throws IOException {
+    String filename = path.getFileName().toString();
+    RelayFile relayFile = new RelayFile(generateKeyFromFilename(filename),
+        filename, manifest, host + ":" + port);
+    connection.getSender().send(relayFile.getBytes());
+    storedFiles.add(path);
+  }
+
+  /**
+   * Reads one block of a file and routes it to its owner.
+   *
+   * @param path of the file
+   * @param manifest describing the blocks
+   * @param block index of the block
+   * @param entry peer to send the block through
+   * @return true if the block was sent
+   */
+  private boolean sendBlock(Path path, StripeManifest manifest, int block,
+      PeerInformation entry) {
+    byte[] content = new byte[manifest.blockLength(block)];
+    long position = (long) block*manifest.blockBytes();
+    try (FileChannel channel = FileChannel.open(path,
+        StandardOpenOption.READ)) {
+      ByteBuffer buffer = ByteBuffer.wrap(content);
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer, position + buffer.position()) < 0) {
+          throw new IOException("file shrank while striping");
+        }
+      }
+    } catch (IOException e) {
+      logger.info("Unable to read block " + block + " of " + path + ". " +
+                  e.getMessage());
+      return false;
+    }
+    String name = StripeManifest.blockName(path.getFileName().toString(),
+        block);
+    RelayFile relayFile = new RelayFile(generateKeyFromFilename(name), name,
+        content, host + ":" + port);
+    return connections.send(entry.getAddress(), relayFile, false);
+  }
+
+  private List<PeerInformation> getEntryPeers() {
+    synchronized(entryPeers) {
+      return new ArrayList<>(entryPeers);
+    }
+  }
+
+  /**
+   * Finds the striped or erasure coded file a block or fragment belongs to,
+   * if it is being stored or retrieved.
+   *
+   * @param name of the block or fragment
+   * @param active files in progress
+   * @return name of the file, null if the name isn't a part of one
+   */
+  private static String parentFileOf(String name,
+      ConcurrentHashMap<String,?> active) {
+    String filename;
+    if (StripeManifest.blockIndex(name) >= 0) {
+      filename = StripeManifest.baseName(name);
+    } else if (ErasureManifest.fragmentIndex(name) >= 0) {
+      filename = ErasureManifest.baseName(name);
+    } else {
+      return null;
+    }
+    return active.containsKey(filename) ? filename : null;
+  }
+
   private void storageDenied(Event event) {
     String[] split = ((GeneralMessage) event).getMessage().split("\\|");
 
@@ -185,6 +758,12 @@ public class StoreData implements Node {
 
     String filename = message.getMessage();
 
+    String parent = parentFileOf(filename, uploads);
+    if (parent != null || uploads.containsKey(filename)) {
+      uploadWritten(parent != null ? parent : filename,
+          message.getType() == Protocol.WRITE_SUCCESS);
+      return;
+    }
     if (message.getType() == Protocol.WRITE_SUCCESS) {
       logger.info("Storage operation of " + filename + " succeeded. ");
     } else {
@@ -194,22 +773,308 @@ public class StoreData implements Node {
     }
   }
 
+  /**
+   * Counts an acknowledged part, or manifest, of a striped or erasure coded
+   * file, and reports the upload once all of them are in.
+   *
+   * @param filename of the file
+   * @param success true if the write succeeded
+   */
+  private void uploadWritten(String filename, boolean success) {
+    Upload upload = uploads.get(filename);
+    if (upload == null) {
+      return;
+    }
+    if (!success) {
+      upload.failed = true;
+    }
+    if (upload.remaining.decrementAndGet() > 0) {
+      return;
+    }
+    uploads.remove(filename, upload);
+    if (upload.failed) {
+      logger.info("Storage operation of " + filename + " failed for some " +
+                  "blocks. ");
+      storedFiles.removeIf(
+          path -> path.getFileName().toString().equals(filename));
+    } else {
+      logger.info("Storage operation of " + filename + " succeeded, " +
+                  describeThroughput(upload.length, upload.start) + ". ");
+    }
+  }
+
+  private static String describeThroughput(long bytes, long start) {
+    long nanos = Math.max(1, System.nanoTime() - start);
+    return bytes + " bytes in " + nanos/1_000_000 + " ms (" +
+           bytes*1_000_000_000L/nanos/1024 + " KiB/s)";
+  }
+
+  /**
+   * Writes a retrieved file. Only the first response to a RETRIEVE and its
+   * hedge is used; the later one is discarded. A response without the file
+   * is ignored while the other request might still find it.
+   *
+   * @param event the SERVE_FILE or SERVE_HEDGE
+   */
   private void receiveFile(Event event) {
     ServeFile message = ((ServeFile) event);
+    String filename = message.getFilename();
+    Retrieval retrieval = oldestRetrieval(filename);
+    if (retrieval == null) {
+      discarded.incrementAndGet();
+      logger.debug("Discarded a late response for " + filename + ".");
+      return;
+    }
     byte[] content = message.getContent();
-    if (content != null) {
-      writeReceivedFile(message.getFilename(), content);
+    if (content == null && retrieval.awaitOther()) {
+      return;
+    }
+    if (!retrievals.remove(retrieval.key, retrieval)) {
+      discarded.incrementAndGet();
+      return;
+    }
+    retrieval.cancel();
+    retrieval.latencies.record(System.nanoTime() - retrieval.start);
+    if (message.getType() == Protocol.SERVE_HEDGE) {
+      hedgeWins.incrementAndGet();
+    }
+    deliver(filename, content);
+  }
+
+  /**
+   * Hands the answer to a RETRIEVE to the striped or erasure coded file it
+   * is part of, or writes it if it's a whole file.
+   *
+   * @param filename of the file, block or fragment
+   * @param content of it, null if it wasn't found
+   */
+  private void deliver(String filename, byte[] content) {
+    String striped = parentFileOf(filename, assemblies);
+    String coded = parentFileOf(filename, decodings);
+    if (striped != null) {
+      receiveBlock(striped, filename, content);
+      return;
+    } else if (coded != null) {
+      receiveFragment(coded, filename, content);
+      return;
+    }
+    StripeManifest manifest = StripeManifest.parse(content);
+    ErasureManifest erasure = ErasureManifest.parse(content);
+    if (manifest != null) {
+      retrieveBlocks(filename, manifest);
+    } else if (erasure != null) {
+      retrieveFragments(filename, erasure);
+    } else if (content != null) {
+      writeReceivedFile(filename, content);
     } else {
-      logger.info(
-          "The received content for " + message.getFilename() + " is null.");
+      logger.info("The received content for " + filename + " is null.");
+    }
+  }
+
+  /**
+   * Sends a RETRIEVE for every block of a striped file at once, spread over
+   * the recently used entry peers. Each is tracked, and hedged, like any
+   * other RETRIEVE.
+   *
+   * @param filename of the striped file
+   * @param manifest describing its blocks
+   */
+  private void retrieveBlocks(String filename, StripeManifest manifest) {
+    Assembly assembly;
+    try {
+      assembly = new Assembly(manifest,
+          getReadsDirectory().resolve(filename));
+    } catch (IOException e) {
+      logger.info("Unable to create " + filename + " on disk. " +
+                  e.getMessage());
+      return;
+    }
+    assemblies.put(filename, assembly);
+    List<PeerInformation> entries = getEntryPeers();
+    for (int i = 0; i < manifest.blocks(); ++i) {
+      String block = StripeManifest.blockName(filename, i);
+      if (!requestPart(block, entries.get(i%entries.size()))) {
+        abandon(filename, assembly);
+        logger.info("Couldn't request block " + i + " of " + filename + ".");
+        return;
+      }
+    }
+    logger.info("Retrieving " + filename + " as " + manifest.blocks() +
+                " blocks.");
+  }
+
+  /**
+   * Sends a tracked RETRIEVE for one block or fragment of a file.
+   *
+   * @param name of the block or fragment
+   * @param entry peer to send the RETRIEVE to
+   * @return true if the RETRIEVE was sent
+   */
+  private boolean requestPart(String name, PeerInformation entry) {
+    SeekMessage message = new SeekMessage(RETRIEVE,
+        generateKeyFromFilename(name), name, host + ":" + port);
+    Retrieval retrieval =
+        startRetrieval(name, Paths.get(name), entry, partLatencies);
+    if (!connections.send(entry.getAddress(), message, false)) {
+      retrievals.remove(retrieval.key, retrieval);
+      retrieval.cancel();
+      return false;
     }
+    return true;
+  }
+
+  /**
+   * Sends a RETRIEVE for each data fragment of an erasure coded file at
+   * once. If they're all there, the file is rebuilt without decoding.
+   *
+   * @param filename of the erasure coded file
+   * @param manifest describing its fragments
+   */
+  private void retrieveFragments(String filename, ErasureManifest manifest) {
+    decodings.put(filename, new Decoding(manifest));
+    List<PeerInformation> entries = getEntryPeers();
+    for (int i = 0; i < manifest.dataFragments(); ++i) {
+      String fragment = ErasureManifest.fragmentName(filename, i);
+      if (!requestPart(fragment, entries.get(i%entries.size()))) {
+        fragmentMissing(filename, fragment);
+      }
+    }
+    logger.info("Retrieving " + filename + " from " +
+                manifest.dataFragments() + " of its " +
+                manifest.fragments() + " fragments.");
+  }
+
+  /**
+   * Keeps a retrieved fragment, and decodes the file once k fragments have
+   * arrived.
+   *
+   * @param filename of the erasure coded file
+   * @param fragment name of the fragment
+   * @param content of the fragment, null if its owner didn't have it
+   */
+  private void receiveFragment(String filename, String fragment,
+      byte[] content) {
+    Decoding decoding = decodings.get(filename);
+    if (decoding == null) {
+      return;
+    }
+    if (content == null ||
+        content.length != decoding.manifest.fragmentBytes()) {
+      fragmentMissing(filename, fragment);
+      return;
+    }
+    int index = ErasureManifest.fragmentIndex(fragment);
+    if (!decoding.add(index, content) ||
+        !decodings.remove(filename, decoding)) {
+      return;
+    }
+    byte[] decoded = decoding.manifest.decode(decoding.fragments);
+    if (decoded == null) {
+      logger.info("Couldn't decode " + filename + ".");
+      return;
+    }
+    logger.info("Decoded " + filename + " with " + decoding.missing +
+                " fragments missing, " +
+                describeThroughput(decoded.length, decoding.start) + ".");
+    writeReceivedFile(filename, decoded);
+  }
+
+  /**
+   * Requests a parity fragment in place of one that couldn't be retrieved,
+   * and gives up once fewer than k fragments can still arrive.
+   *
+   * @param filename of the erasure coded file
+   * @param fragment name of the missing fragment
+   */
+  private void fragmentMissing(String filename, String fragment) {
+    Decoding decoding = decodings.get(filename);
+    if (decoding == null) {
+      return;
+    }
+    int next = decoding.replace();
+    while (next >= 0) {
+      String spare = ErasureManifest.fragmentName(filename, next);
+      List<PeerInformation> entries = getEntryPeers();
+      if (requestPart(spare, entries.get(next%entries.size()))) {
+        logger.info(fragment + " is missing, requested " + spare + ".");
+        return;
+      }
+      next = decoding.replace();
+    }
+    if (next == -1 && decodings.remove(filename, decoding)) {
+      logger.info("Too many fragments of " + filename + " are missing, " +
+                  "it can't be retrieved.");
+    }
+  }
+
+  /**
+   * Writes a retrieved block into its file, and renames the file into place
+   * once every block has arrived.
+   *
+   * @param filename of the striped file
+   * @param block name of the block
+   * @param content of the block, null if its owner didn't have it
+   */
+  private void receiveBlock(String filename, String block, byte[] content) {
+    Assembly assembly = assemblies.get(filename);
+    if (assembly == null) {
+      return;
+    }
+    if (content == null) {
+      abandon(filename, assembly);
+      logger.info("Block " + block + " is missing, " + filename + " can't " +
+                  "be retrieved.");
+      return;
+    }
+    int index = StripeManifest.blockIndex(block);
+    if (index < 0 || index >= assembly.manifest.blocks()) {
+      abandon(filename, assembly);
+      logger.info(block + " isn't a block of " + filename + ", it can't " +
+                  "be retrieved.");
+      return;
+    }
+    try {
+      if (assembly.add(index, content) &&
+          assemblies.remove(filename, assembly)) {
+        assembly.finish(true);
+        logger.info("Assembled " + filename + ", " +
+                    describeThroughput(assembly.manifest.length(),
+                        assembly.start) + ".");
+        logger.info("Wrote " + filename + " to the 'reads' directory.");
+      }
+    } catch (IOException e) {
+      abandon(filename, assembly);
+      logger.info("Unable to write " + filename + " to disk. " +
+                  e.getMessage());
+    }
+  }
+
+  /**
+   * Stops assembling a striped file, and deletes what was written of it.
+   *
+   * @param filename of the striped file
+   * @param assembly of the file
+   */
+  private void abandon(String filename, Assembly assembly) {
+    if (assemblies.remove(filename, assembly)) {
+      try {
+        assembly.finish(false);
+      } catch (IOException e) {
+        logger.debug("Unable to delete the partial " + filename + ". " +
+                     e.getMessage());
+      }
+    }
+  }
+
+  private static Path getReadsDirectory() throws IOException {
+    Path directory = Paths.get(System.getProperty("user.dir"), "reads");
+    Files.createDirectories(directory);
+    return directory;
   }
 
   private void writeReceivedFile(String filename, byte[] content) {
     try {
-      Path writeDirectory = Paths.get(System.getProperty("user.dir"), "reads");
-      Files.createDirectories(writeDirectory);
-      Path path = writeDirectory.resolve(filename);
+      Path path = getReadsDirectory().resolve(filename);
       Files.write(path, content);
       logger.info("Wrote " + filename + " to the 'reads' directory.");
     } catch (IOException e) {
@@ -217,7 +1082,21 @@ public class StoreData implements Node {
     }
   }
 
+  /**
+   * Derives the key of a file from its name. Fragments of an erasure coded
+   * file are keyed relative to the file itself, so that they're spread
+   * evenly around the ring.
+   *
+   * @param filename name of the file
+   * @return hex key of the file
+   */
   public static String generateKeyFromFilename(String filename) {
+    int fragment = ErasureManifest.fragmentIndex(filename);
+    if (fragment >= 0) {
+      return ErasureManifest.fragmentKey(
+          generateKeyFromFilename(ErasureManifest.baseName(filename)),
+          fragment);
+    }
     Random random = new Random(filename.hashCode());
     byte[] keyBytes = new byte[2];
     random.nextBytes(keyBytes);
@@ -258,6 +1137,10 @@ public class StoreData implements Node {
           printFilesInWorkingDirectory();
           break;
 
+        case "stats":
+          displayStatistics();
+          break;
+
         case "h", "help":
           displayHelp();
           break;
@@ -310,6 +1193,12 @@ public class StoreData implements Node {
     // If type == STORE, need full local path of file to read it
     Path path =
         type.equals(STORE) ? parsePath(command[1]) : Paths.get(command[1]);
+    if (type.equals(STORE) && path.getFileName().toString()
+                                  .indexOf(ErasureManifest.SEPARATOR) >= 0) {
+      logger.error("Filenames containing '" + ErasureManifest.SEPARATOR +
+                   "' are reserved for blocks and erasure coded fragments.");
+      return;
+    }
 
     Operation operation = new Operation(type, path);
     ops.add(operation);
@@ -381,6 +1270,28 @@ public class StoreData implements Node {
     return directory;
   }
 
+  /**
+   * Print counters for retrieves and their hedges.
+   */
+  private void displayStatistics() {
+    long total = retrieves.get();
+    long hedged = hedges.get();
+    System.out.printf("%2s%-9s : %s%n", "", "retrieves",
+        total + ", p50 " + latencies.percentile(50)/1_000 + " us, p95 " +
+        latencies.percentile(95)/1_000 + " us, p99 " +
+        latencies.percentile(99)/1_000 + " us");
+    System.out.printf("%2s%-9s : %s%n", "", "parts",
+        "p50 " + partLatencies.percentile(50)/1_000 + " us, p95 " +
+        partLatencies.percentile(95)/1_000 + " us, p99 " +
+        partLatencies.percentile(99)/1_000 + " us");
+    System.out.printf("%2s%-9s : %s%n", "", "hedges",
+        hedged + " (" + (total == 0 ? 0 : 100*hedged/total) + "% of " +
+        "retrieves), won " + hedgeWins.get() + ", late responses " +
+        "discarded " + discarded.get() + ", timed out " + expired.get() +
+        ", delay " + getHedgeDelay(latencies) + " ms, for parts " +
+        getHedgeDelay(partLatencies) + " ms");
+  }
+
   /**
    * Print a list of valid commands for the user.
    */
@@ -397,6 +1308,8 @@ public class StoreData implements Node {
         "print the current working directory or change it");
     System.out.printf("%2s%-21s : %s%n", "", "ls",
         "perform an ls command for the working directory");
+    System.out.printf("%2s%-21s : %s%n", "", "stats",
+        "print retrieve latency and hedging counters");
     System.out.printf("%2s%-21s : %s%n", "", "e[xit]", "shut down this node");
     System.out.printf("%2s%-21s : %s%n", "", "h[elp]",
         "print a list of valid commands");
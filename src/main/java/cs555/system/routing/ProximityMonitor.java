@@ -0,0 +1,159 @@
+package cs555.system.routing;
+
+import cs555.system.transport.TCPConnectionCache;
+import cs555.system.util.ApplicationProperties;
+import cs555.system.util.Logger;
+import cs555.system.util.PeerInformation;
+import cs555.system.wireformats.PingMessage;
+import cs555.system.wireformats.Protocol;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps track of the measured round-trip time to other peers. Measurements are
+ * taken by sending a PING, and are recorded when the matching PONG arrives.
+ * The RoutingTable uses these measurements to prefer the closest (in network
+ * terms) candidate for each of its cells.
+ *
+ * @author hayne
+ */
+public class ProximityMonitor {
+
+  private static final Logger logger = Logger.getInstance();
+  public static final long UNKNOWN = Long.MAX_VALUE;
+  private static final long PROBE_INTERVAL = 30_000_000_000L; // 30 seconds
+  private final PeerInformation self;
+  private final TCPConnectionCache connections;
+  private final ConcurrentHashMap<PeerInformation,Long> latencies;
+  private final ConcurrentHashMap<PeerInformation,Long> lastProbes;
+  private final ConcurrentHashMap<PeerInformation,Integer> unanswered;
+
+  public ProximityMonitor(PeerInformation self,
+      TCPConnectionCache connections) {
+    this.self = self;
+    this.connections = connections;
+    this.latencies = new ConcurrentHashMap<>();
+    this.lastProbes = new ConcurrentHashMap<>();
+    this.unanswered = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * Returns the smoothed round-trip time to a peer in nanoseconds.
+   *
+   * @param peer to get the latency of
+   * @return latency, or UNKNOWN if the peer hasn't been measured yet
+   */
+  public long getLatency(PeerInformation peer) {
+    return latencies.getOrDefault(peer, UNKNOWN);
+  }
+
+  /**
+   * Decides whether a candidate is closer than the peer currently occupying a
+   * slot. The candidate must have been measured, and must be at least 10%
+   * closer, so entries don't flap between peers of similar distance.
+   *
+   * @param candidate peer that would like the slot
+   * @param current peer currently in the slot
+   * @return true if the candidate should replace the current peer
+   */
+  public boolean isCloser(PeerInformation candidate, PeerInformation current) {
+    long candidateLatency = getLatency(candidate);
+    if (candidateLatency == UNKNOWN) {
+      return false;
+    }
+    long currentLatency = getLatency(current);
+    return currentLatency == UNKNOWN ||
+           candidateLatency < currentLatency - currentLatency/10;
+  }
+
+  /**
+   * Sends a PING to the peer, unless it has been probed recently.
+   *
+   * @param peer to measure
+   * @return true if a PING was sent, false if it was skipped or failed
+   */
+  public boolean probe(PeerInformation peer) {
+    if (peer == null || self.equals(peer)) {
+      return false;
+    }
+    Long last = lastProbes.get(peer);
+    if (last != null && System.nanoTime() - last < PROBE_INTERVAL) {
+      return false;
+    }
+    return ping(peer);
+  }
+
+  /**
+   * Sends a PING to the peer regardless of when it was last probed. Used by
+   * routing table maintenance to check entries for liveness.
+   *
+   * @param peer to measure
+   * @return true if the PING was sent, false if the send failed
+   */
+  public boolean ping(PeerInformation peer) {
+    long now = System.nanoTime();
+    lastProbes.put(peer, now);
+    unanswered.merge(peer, 1, Integer::sum);
+    PingMessage ping = new PingMessage(Protocol.PING, self, now);
+    return connections.send(peer.getAddress(), ping, false);
+  }
+
+  /**
+   * Returns how many PINGs have been sent to the peer since it last answered.
+   * A peer whose socket still accepts writes, but which never answers, is
+   * most likely gone.
+   *
+   * @param peer to check
+   * @return number of unanswered PINGs
+   */
+  public int getUnansweredProbes(PeerInformation peer) {
+    return unanswered.getOrDefault(peer, 0);
+  }
+
+  /**
+   * Records the round-trip time carried back by a PONG. The measurement is
+   * blended into an exponentially weighted moving average so that a single
+   * slow response doesn't evict an otherwise close peer.
+   *
+   * @param pong response to a PING this peer sent
+   */
+  public void recordResponse(PingMessage pong) {
+    PeerInformation peer = pong.getPeer();
+    unanswered.remove(peer);
+    long sample = System.nanoTime() - pong.getTimestamp() + injectedDelay(peer);
+    latencies.merge(peer, sample, (old, latest) -> (old*3 + latest)/4);
+    logger.debug("Round-trip time to " + peer.getIdentifier() + " is " +
+                 getLatency(peer)/1000 + " microseconds.");
+  }
+
+  /**
+   * Stops tracking a peer, usually because it has left the network.
+   *
+   * @param peer to forget
+   */
+  public void forget(PeerInformation peer) {
+    latencies.remove(peer);
+    lastProbes.remove(peer);
+    unanswered.remove(peer);
+  }
+
+  /**
+   * Synthetic, deterministic delay between this peer and another, used to
+   * emulate network distance when every peer is running on the same host.
+   * The pair of addresses is hashed in a fixed order, so the delay is the
+   * same in both directions, but differs from one observer to the next.
+   *
+   * @param peer the delay is computed for
+   * @return delay in nanoseconds, zero if injection is disabled
+   */
+  private long injectedDelay(PeerInformation peer) {
+    if (ApplicationProperties.injectedLatency <= 0) {
+      return 0;
+    }
+    String a = self.getAddress();
+    String b = peer.getAddress();
+    String pair = a.compareTo(b) < 0 ? a + "|" + b : b + "|" + a;
+    int hash = (pair.hashCode()&0x7fffffff);
+    return (hash%ApplicationProperties.injectedLatency)*1_000_000L;
+  }
+}
@@ -0,0 +1,109 @@
+package cs555.system.routing;
+
+import cs555.system.util.PeerInformation;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Feeds peers into the routing information as they are encountered. Every peer
+ * that appears in a message's list of hops, or that contacts us directly, was
+ * live and reachable very recently, so it is a free candidate for an empty
+ * routing table slot. Candidates that can't take a slot are measured, along
+ * with the slot's occupant, so the closer of the two can win it later.
+ *
+ * @author hayne
+ */
+public class RouteLearner {
+
+  private static final long OBSERVE_INTERVAL = 10_000_000_000L; // 10 seconds
+  private final PeerInformation self;
+  private final RoutingInformation routingInformation;
+  private final ProximityMonitor proximity;
+  private final ConcurrentHashMap<PeerInformation,Long> lastObserved;
+  private final AtomicLong learned;
+
+  public RouteLearner(PeerInformation self,
+      RoutingInformation routingInformation, ProximityMonitor proximity) {
+    this.self = self;
+    this.routingInformation = routingInformation;
+    this.proximity = proximity;
+    this.lastObserved = new ConcurrentHashMap<>();
+    this.learned = new AtomicLong(0);
+  }
+
+  /**
+   * Offers a peer to the routing information. If it can't be placed, it and
+   * the occupant of the slot it wanted are probed.
+   *
+   * @param peer candidate
+   * @return true if the routing information was modified
+   */
+  public boolean offer(PeerInformation peer) {
+    if (peer == null || self.equals(peer) ||
+        !routingInformation.isInitialized()) {
+      return false;
+    }
+    if (routingInformation.addPeer(peer)) {
+      return true;
+    }
+    PeerInformation occupant = routingInformation.getRoutingOccupant(peer);
+    if (occupant != null && !occupant.equals(peer)) {
+      proximity.probe(peer);
+      proximity.probe(occupant);
+    }
+    return false;
+  }
+
+  /**
+   * Opportunistically offers a peer seen in passing traffic. Each peer is only
+   * considered once every OBSERVE_INTERVAL, so busy routes don't turn every
+   * message into routing table work.
+   *
+   * @param peer seen in traffic
+   * @return true if the routing information was modified
+   */
+  public boolean observe(PeerInformation peer) {
+    if (peer == null || self.equals(peer)) {
+      return false;
+    }
+    long now = System.nanoTime();
+    Long last = lastObserved.get(peer);
+    if (last != null && now - last < OBSERVE_INTERVAL) {
+      return false;
+    }
+    lastObserved.put(peer, now);
+    if (offer(peer)) {
+      learned.incrementAndGet();
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Observes a collection of peers, like the hops of a routed message.
+   *
+   * @param peers seen in traffic
+   * @return true if the routing information was modified
+   */
+  public boolean observeAll(Collection<PeerInformation> peers) {
+    boolean modified = false;
+    for (PeerInformation peer : peers) {
+      if (observe(peer)) {
+        modified = true;
+      }
+    }
+    return modified;
+  }
+
+  /**
+   * Returns the number of peers added to the routing information from
+   * observed traffic.
+   *
+   * @return count of learned peers
+   */
+  public long getLearnedCount() {
+    return learned.get();
+  }
+}
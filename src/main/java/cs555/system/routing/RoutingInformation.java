@@ -5,6 +5,7 @@ import cs555.system.util.PeerInformation;
 import cs555.system.wireformats.JoinMessage;
 import cs555.system.wireformats.PeerBroadcast;
 
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.Set;
@@ -13,12 +14,14 @@ import java.util.concurrent.CountDownLatch;
 public class RoutingInformation {
 
   private final CountDownLatch initializationLatch;
+  private final ProximityMonitor proximity;
   private PeerInformation self;
   private LeafSet leafSet;
   private RoutingTable routingTable;
 
-  public RoutingInformation() {
+  public RoutingInformation(ProximityMonitor proximity) {
     this.initializationLatch = new CountDownLatch(1);
+    this.proximity = proximity;
   }
 
   public void initialize(PeerInformation self, JoinMessage joinMessage,
@@ -27,23 +30,14 @@ public class RoutingInformation {
       this.self = self;
       this.leafSet = new LeafSet(self);
       this.routingTable = new RoutingTable(self);
+      this.routingTable.setProximity(proximity);
     } else {
       this.self = self;
       this.leafSet = joinMessage.getLeafSet();
       this.routingTable = joinMessage.getRoutingTable();
+      this.routingTable.setProximity(proximity);
       rebuildLeafSet();
-      // Send routing information to all known peers
-      Set<PeerInformation> peerSet = getPeerSet(false);
-      PeerBroadcast message = new PeerBroadcast(self, peerSet);
-      for (Iterator<PeerInformation> i = peerSet.iterator(); i.hasNext(); ) {
-        PeerInformation peer = i.next();
-        String address = peer.getAddress();
-        boolean sent = connections.send(address, message, false);
-        if (!sent) {
-          removePeer(peer);
-          i.remove();
-        }
-      }
+      announce(connections);
       joinMessage.getHops().add(self);
       System.out.println("Join Message Traceroute: " + joinMessage.getTrace());
     }
@@ -51,6 +45,94 @@ public class RoutingInformation {
     displayRoutingInformation();
   }
 
+  /**
+   * Initializes the routing information from the peers saved by a previous
+   * run with the same identifier, instead of from a SPECIAL_JOIN. Every peer
+   * is told our (possibly new) address straight away, and peers that can't
+   * be reached are dropped. The rest are assumed live until they fail to
+   * answer PINGs. If none can be reached, the routing information is left
+   * uninitialized, so the peer can join normally instead.
+   *
+   * @param self this peer
+   * @param peers from the RoutingSnapshot
+   * @param connections used to announce this peer
+   * @return true if at least one peer was reached
+   */
+  public boolean restore(PeerInformation self,
+      Collection<PeerInformation> peers, TCPConnectionCache connections) {
+    this.self = self;
+    this.leafSet = new LeafSet(self);
+    this.routingTable = new RoutingTable(self);
+    this.routingTable.setProximity(proximity);
+    for (PeerInformation peer : peers) {
+      addPeer(peer);
+    }
+    announce(connections);
+    if (getPeerSet(false).isEmpty()) {
+      return false;
+    }
+    initializationLatch.countDown();
+    displayRoutingInformation();
+    return true;
+  }
+
+  /**
+   * Sends this peer's routing information to all known peers, removing any
+   * that can't be reached.
+   *
+   * @param connections used to reach the peers
+   */
+  private void announce(TCPConnectionCache connections) {
+    Set<PeerInformation> peerSet = getPeerSet(false);
+    PeerBroadcast message = new PeerBroadcast(self, peerSet);
+    for (Iterator<PeerInformation> i = peerSet.iterator(); i.hasNext(); ) {
+      PeerInformation peer = i.next();
+      String address = peer.getAddress();
+      boolean sent = connections.send(address, message, false);
+      if (!sent) {
+        removePeer(peer);
+        i.remove();
+      }
+    }
+  }
+
+  /**
+   * Collects every peer in the leaf set and routing table, including each
+   * slot's backups, for a RoutingSnapshot.
+   *
+   * @return set of known peers, excluding self
+   */
+  public synchronized Set<PeerInformation> getKnownPeers() {
+    Set<PeerInformation> peers = getPeerSet(false);
+    for (int row = 0; row < 4; ++row) {
+      peers.addAll(getRowEntries(row, true));
+    }
+    return peers;
+  }
+
+  /**
+   * Replaces the stored entry for a peer which has restarted, and so has the
+   * same identifier at a new address. Peers are equal by identifier, so
+   * without this the stale address would never be updated.
+   *
+   * @param peer with its current address
+   * @return true if a stale entry was replaced
+   */
+  public synchronized boolean refreshAddress(PeerInformation peer) {
+    if (!isInitialized()) {
+      return false;
+    }
+    for (PeerInformation known : getKnownPeers()) {
+      if (known.equals(peer) &&
+          !known.getAddress().equals(peer.getAddress())) {
+        removePeer(known);
+        addPeer(peer);
+        return true;
+      }
+    }
+    return false;
+  }
+
   /**
    * Generates a set of all peers in the routing table and leaf set.
    *
@@ -77,6 +159,44 @@ public class RoutingInformation {
     return peerSet;
   }
 
+  /**
+   * Collects the peers in one row of the routing table.
+   *
+   * @param row of the routing table
+   * @param includeBackups true if each slot's backups should be included
+   * @return set of peers in the row, excluding self
+   */
+  public synchronized Set<PeerInformation> getRowEntries(int row,
+      boolean includeBackups) {
+    Set<PeerInformation> entries = new LinkedHashSet<>();
+    for (int col = 0; col < 16; ++col) {
+      PeerInformation peer = routingTable.get(row, col);
+      if (peer != null && !peer.equals(self)) {
+        entries.add(peer);
+      }
+      if (includeBackups) {
+        entries.addAll(routingTable.getBackups(row, col));
+      }
+    }
+    return entries;
+  }
+
+  /**
+   * Counts the empty slots in one row of the routing table.
+   *
+   * @param row of the routing table
+   * @return number of empty slots
+   */
+  public synchronized int countEmptySlots(int row) {
+    int empty = 0;
+    for (int col = 0; col < 16; ++col) {
+      if (routingTable.get(row, col) == null) {
+        ++empty;
+      }
+    }
+    return empty;
+  }
+
   /**
    * Returns the peer that is closest in id-space to the key. If there are two
    * peers in the network that are equidistant from the key, this function will
@@ -157,6 +277,20 @@ public class RoutingInformation {
     }
   }
 
+  public boolean isInitialized() {
+    return initializationLatch.getCount() == 0;
+  }
+
+  /**
+   * Returns the peer in the routing table slot the supplied peer would occupy.
+   *
+   * @param peer whose slot is being checked
+   * @return peer in that slot, or null if it is empty
+   */
+  public synchronized PeerInformation getRoutingOccupant(PeerInformation peer) {
+    return routingTable.getOccupant(peer);
+  }
+
   public synchronized boolean addPeer(PeerInformation peer) {
     boolean added = routingTable.add(peer);
     PeerInformation replacedLeaf = leafSet.add(peer);
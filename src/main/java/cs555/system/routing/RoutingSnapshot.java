@@ -0,0 +1,85 @@
+package cs555.system.routing;
+
+import cs555.system.util.Logger;
+import cs555.system.util.PeerInformation;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Saves the peers in this peer's routing information, so that a peer which
+ * restarts with the same identifier can rejoin from them, instead of walking
+ * a SPECIAL_JOIN through the network. The snapshot lives in a 'routing'
+ * directory inside the peer's directory, out of the way of its files.
+ *
+ * @author hayne
+ */
+public class RoutingSnapshot {
+
+  private static final Logger logger = Logger.getInstance();
+  private static final String DIRECTORY = "routing";
+  private static final String FILENAME = "snapshot";
+
+  /**
+   * Writes the snapshot to a temporary file and moves it into place, so a
+   * crash mid-write leaves the previous snapshot intact.
+   *
+   * @param directory the peer's directory
+   * @param peers every peer in the routing information, including backups
+   */
+  public static void save(Path directory, Collection<PeerInformation> peers) {
+    Path snapshotDirectory = directory.resolve(DIRECTORY);
+    Path temporary = snapshotDirectory.resolve(FILENAME + ".tmp");
+    try {
+      Files.createDirectories(snapshotDirectory);
+      try (DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+        out.writeInt(peers.size());
+        for (PeerInformation peer : peers) {
+          out.writeUTF(peer.getIdentifier());
+          out.writeUTF(peer.getHost());
+          out.writeInt(peer.getPort());
+        }
+      }
+      Files.move(temporary, snapshotDirectory.resolve(FILENAME),
+          StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      logger.error("Couldn't save the routing snapshot. " + e.getMessage());
+    }
+  }
+
+  /**
+   * Reads the snapshot saved by a previous run.
+   *
+   * @param directory the peer's directory
+   * @return peers in the snapshot, empty if there isn't one
+   */
+  public static List<PeerInformation> load(Path directory) {
+    List<PeerInformation> peers = new ArrayList<>();
+    Path snapshot = directory.resolve(DIRECTORY).resolve(FILENAME);
+    try (DataInputStream in = new DataInputStream(
+        new BufferedInputStream(Files.newInputStream(snapshot)))) {
+      int count = in.readInt();
+      for (int i = 0; i < count; ++i) {
+        peers.add(new PeerInformation(in.readUTF(), in.readUTF(),
+            in.readInt()));
+      }
+    } catch (NoSuchFileException e) {
+      // Never saved
+    } catch (IOException e) {
+      logger.error("Couldn't load the routing snapshot. " + e.getMessage());
+      peers.clear();
+    }
+    return peers;
+  }
+}
@@ -3,14 +3,22 @@ package cs555.system.routing;
 import cs555.system.util.HexUtilities;
 import cs555.system.util.PeerInformation;
 
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
 public class RoutingTable {
 
+  public static final int MAX_BACKUPS = 3;
   private final PeerInformation self;
   private final PeerInformation[][] table;
+  private final List<List<List<PeerInformation>>> backups;
+  private ProximityMonitor proximity;
 
   public RoutingTable(PeerInformation self) {
     this.self = self;
     this.table = new PeerInformation[4][16];
+    this.backups = createBackups();
     addSelfToTable(this.self);
   }
 
@@ -24,16 +32,73 @@ public class RoutingTable {
   public RoutingTable(PeerInformation self, PeerInformation[][] table) {
     this.self = self;
     this.table = table;
+    this.backups = createBackups();
+  }
+
+  private static List<List<List<PeerInformation>>> createBackups() {
+    List<List<List<PeerInformation>>> backups = new ArrayList<>(4);
+    for (int row = 0; row < 4; ++row) {
+      List<List<PeerInformation>> columns = new ArrayList<>(16);
+      for (int col = 0; col < 16; ++col) {
+        columns.add(new ArrayList<>(MAX_BACKUPS));
+      }
+      backups.add(columns);
+    }
+    return backups;
   }
 
   public PeerInformation getSelf() {
     return self;
   }
 
+  /**
+   * Sets the ProximityMonitor used to choose between candidates for the same
+   * slot. Without one, the first peer to arrive keeps the slot.
+   *
+   * @param proximity monitor holding measured latencies
+   */
+  public synchronized void setProximity(ProximityMonitor proximity) {
+    this.proximity = proximity;
+  }
+
   public synchronized PeerInformation get(int row, int col) {
     return table[row][col];
   }
 
+  /**
+   * Returns a copy of the ranked alternates held for a slot.
+   *
+   * @param row of the slot
+   * @param col of the slot
+   * @return list of backups, best first
+   */
+  public synchronized List<PeerInformation> getBackups(int row, int col) {
+    return new ArrayList<>(backups.get(row).get(col));
+  }
+
+  /**
+   * Returns the peer occupying the slot that the supplied peer would be
+   * placed in.
+   *
+   * @param peer whose slot is being checked
+   * @return peer in that slot, or null if it is empty
+   */
+  public synchronized PeerInformation getOccupant(PeerInformation peer) {
+    int row = HexUtilities.firstDifference(self.getIdentifier(),
+        peer.getIdentifier());
+    int col = HexUtilities.hexToDecimal(peer.getIdentifier().charAt(row));
+    return table[row][col];
+  }
+
+  /**
+   * Adds a peer to its slot in the table. If the slot is empty, the peer takes
+   * it. If the slot is occupied, the peer only takes it if it has been
+   * measured to be closer than the current occupant, who is then kept as a
+   * backup. Peers that don't take the slot are ranked among its backups.
+   *
+   * @param peer to add
+   * @return true if the peer was placed in the table, false if not
+   */
   public synchronized boolean add(PeerInformation peer) {
     String selfID = self.getIdentifier();
     String peerID = peer.getIdentifier();
@@ -42,27 +107,81 @@ public class RoutingTable {
     PeerInformation currentPeer = table[row][col];
     if (currentPeer == null) {
       table[row][col] = peer;
+      backups.get(row).get(col).remove(peer);
+      return true;
+    } else if (currentPeer.equals(peer) || currentPeer.equals(self)) {
+      return false;
+    } else if (proximity != null && proximity.isCloser(peer, currentPeer)) {
+      table[row][col] = peer;
+      backups.get(row).get(col).remove(peer);
+      addBackup(row, col, currentPeer);
       return true;
     }
+    addBackup(row, col, peer);
     return false;
   }
 
   /**
-   * Removes one instance of a Peer (there should only be one) from the table.
+   * Inserts a peer into the ranked list of alternates for a slot. Backups are
+   * ordered by measured latency when a ProximityMonitor is available, and by
+   * arrival otherwise. Only the best MAX_BACKUPS are kept.
+   *
+   * @param row of the slot
+   * @param col of the slot
+   * @param peer alternate to add
+   */
+  private void addBackup(int row, int col, PeerInformation peer) {
+    List<PeerInformation> list = backups.get(row).get(col);
+    list.remove(peer);
+    list.add(peer);
+    if (proximity != null) {
+      list.sort(Comparator.comparingLong(proximity::getLatency));
+    }
+    while (list.size() > MAX_BACKUPS) {
+      list.remove(list.size() - 1);
+    }
+  }
+
+  /**
+   * Appends a peer to the end of the alternates for a slot, keeping the
+   * order they were ranked in elsewhere, such as by the peer that sent this
+   * table. The slot's occupant, and peers already held, are skipped, as are
+   * any beyond MAX_BACKUPS.
+   *
+   * @param row of the slot
+   * @param col of the slot
+   * @param peer alternate to append
+   */
+  public synchronized void appendBackup(int row, int col,
+      PeerInformation peer) {
+    List<PeerInformation> list = backups.get(row).get(col);
+    if (list.size() < MAX_BACKUPS && !peer.equals(table[row][col]) &&
+        !list.contains(peer)) {
+      list.add(peer);
+    }
+  }
+
+  /**
+   * Removes every instance of a Peer from the table, including its backup
+   * entries. If the peer occupied a slot, the best backup for that slot takes
+   * its place immediately.
    *
    * @param peer peer to remove
-   * @return true if something was removed, false if not
+   * @return true if a slot was vacated or refilled, false if not
    */
   public synchronized boolean remove(PeerInformation peer) {
+    boolean removed = false;
     for (int row = 0; row < table.length; ++row) {
       for (int col = 0; col < table[row].length; ++col) {
+        backups.get(row).get(col).remove(peer);
         if (peer.equals(table[row][col])) {
-          table[row][col] = null;
-          return true;
+          List<PeerInformation> list = backups.get(row).get(col);
+          table[row][col] = list.isEmpty() ? null : list.remove(0);
+          removed = true;
         }
       }
     }
-    return false;
+    return removed;
   }
 
   public synchronized String toString() {
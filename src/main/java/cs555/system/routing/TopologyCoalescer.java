@@ -0,0 +1,96 @@
+package cs555.system.routing;
+
+import cs555.system.util.Logger;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Batches topology changes so the work they trigger (printing the routing
+ * information, migrating files) runs once per burst instead of once per
+ * change. The first signal in a quiet period schedules a batch to run after
+ * a short window, and every signal that arrives before the batch starts is
+ * folded into it. Batches run on a dedicated thread, never on the
+ * TCPReceiverThread that delivered the change.
+ *
+ * @author hayne
+ */
+public class TopologyCoalescer {
+
+  private static final Logger logger = Logger.getInstance();
+  private final ScheduledExecutorService executor;
+  private final Runnable batch;
+  private final long window;
+  private final AtomicBoolean scheduled;
+  private final AtomicInteger pending;
+  private final AtomicLong signals;
+  private final AtomicLong batches;
+
+  /**
+   * Default constructor.
+   *
+   * @param batch work to run once per batch of changes
+   * @param window milliseconds to wait for more changes before running
+   */
+  public TopologyCoalescer(Runnable batch, long window) {
+    this.executor = Executors.newSingleThreadScheduledExecutor();
+    this.batch = batch;
+    this.window = window;
+    this.scheduled = new AtomicBoolean(false);
+    this.pending = new AtomicInteger(0);
+    this.signals = new AtomicLong(0);
+    this.batches = new AtomicLong(0);
+  }
+
+  /**
+   * Records a change. Schedules a batch if one isn't already waiting.
+   */
+  public void signal() {
+    pending.incrementAndGet();
+    signals.incrementAndGet();
+    if (scheduled.compareAndSet(false, true)) {
+      executor.schedule(this::runBatch, window, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Runs the batch. The scheduled flag is cleared before the pending count is
+   * taken, so a change arriving while the batch is running schedules another.
+   */
+  private void runBatch() {
+    scheduled.set(false);
+    int changes = pending.getAndSet(0);
+    batches.incrementAndGet();
+    logger.debug("Processing " + changes + " topology changes in one batch.");
+    try {
+      batch.run();
+    } catch (RuntimeException e) {
+      logger.error("Topology batch failed. " + e.getMessage());
+    }
+  }
+
+  /**
+   * Stops any batch that hasn't started yet.
+   */
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * Returns a one-line summary of the changes signalled, the batches run, and
+   * how many changes were coalesced into those batches.
+   *
+   * @return statistics string
+   */
+  public String getStatistics() {
+    long totalSignals = signals.get();
+    long totalBatches = batches.get();
+    return "signals " + totalSignals + ", batches " + totalBatches +
+           ", coalesced " + Math.max(0, totalSignals - totalBatches -
+                                            pending.get());
+  }
+}
@@ -25,4 +25,93 @@ public interface ApplicationProperties {
 
   String logLevel =
       PropertyLoader.getInstance().getProperty("logLevel", "info").strip();
+
+  int injectedLatency = Integer.parseInt(
+      PropertyLoader.getInstance().getProperty("injectedLatency", "0"));
+
+  int maintenanceInterval = Integer.parseInt(
+      PropertyLoader.getInstance().getProperty("maintenanceInterval", "30"));
+
+  int topologyWindow = Integer.parseInt(
+      PropertyLoader.getInstance().getProperty("topologyWindow", "250"));
+
+  int migrationBatchBytes = Integer.parseInt(
+      PropertyLoader.getInstance().getProperty("migrationBatchBytes",
+          "4194304"));
+
+  long migrationRate = Long.parseLong(
+      PropertyLoader.getInstance().getProperty("migrationRate", "0"));
+
+  int leaveConcurrency = Integer.parseInt(
+      PropertyLoader.getInstance().getProperty("leaveConcurrency", "4"));
+
+  long leaveTimeout = Long.parseLong(
+      PropertyLoader.getInstance().getProperty("leaveTimeout", "10000"));
+
+  String storageEngine = PropertyLoader
+                             .getInstance()
+                             .getProperty("storageEngine", "file")
+                             .strip();
+
+  long segmentBytes = Long.parseLong(
+      PropertyLoader.getInstance().getProperty("segmentBytes", "67108864"));
+
+  int mapCacheEntries = Integer.parseInt(
+      PropertyLoader.getInstance().getProperty("mapCacheEntries", "256"));
+
+  long cacheBytes = Long.parseLong(
+      PropertyLoader.getInstance().getProperty("cacheBytes", "67108864"));
+
+  String cachePolicy = PropertyLoader
+                           .getInstance()
+                           .getProperty("cachePolicy", "tinylfu")
+                           .strip();
+
+  int cacheAdmission = Integer.parseInt(
+      PropertyLoader.getInstance().getProperty("cacheAdmission", "2"));
+
+  String cacheType = PropertyLoader
+                         .getInstance()
+                         .getProperty("cacheType", "heap")
+                         .strip();
+
+  int replicationFactor = Math.max(1, Math.min(3, Integer.parseInt(
+      PropertyLoader.getInstance().getProperty("replicationFactor", "1"))));
+
+  long hedgeDelay = Long.parseLong(
+      PropertyLoader.getInstance().getProperty("hedgeDelay", "-1"));
+
+  long retrieveTimeout = Long.parseLong(
+      PropertyLoader.getInstance().getProperty("retrieveTimeout", "60000"));
+
+  long routeCacheBytes = Long.parseLong(
+      PropertyLoader.getInstance().getProperty("routeCacheBytes", "0"));
+
+  int routeCacheThreshold = Integer.parseInt(
+      PropertyLoader.getInstance().getProperty("routeCacheThreshold", "4"));
+
+  long routeCacheTtl = Long.parseLong(
+      PropertyLoader.getInstance().getProperty("routeCacheTtl", "60"));
+
+  double hotReadRate = Double.parseDouble(
+      PropertyLoader.getInstance().getProperty("hotReadRate", "0"));
+
+  long hotHalfLife = Long.parseLong(
+      PropertyLoader.getInstance().getProperty("hotHalfLife", "10"));
+
+  int stripeBytes = Integer.parseInt(
+      PropertyLoader.getInstance().getProperty("stripeBytes", "0"));
+
+  int stripeConcurrency = Integer.parseInt(
+      PropertyLoader.getInstance().getProperty("stripeConcurrency", "8"));
+
+  int erasureDataFragments = Math.max(0, Math.min(128, Integer.parseInt(
+      PropertyLoader.getInstance().getProperty("erasureDataFragments", "0"))));
+
+  int erasureParityFragments = Math.max(1, Math.min(128, Integer.parseInt(
+      PropertyLoader.getInstance().getProperty("erasureParityFragments",
+          "2"))));
+
+  long erasureRepairInterval = Long.parseLong(
+      PropertyLoader.getInstance().getProperty("erasureRepairInterval", "30"));
 }
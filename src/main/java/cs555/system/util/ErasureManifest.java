@@ -0,0 +1,157 @@
+package cs555.system.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Describes a file which was erasure coded into k data and m parity
+ * fragments with a ReedSolomon code, so that it can be rebuilt from any k
+ * of them. The manifest is stored under the file's own name, and fragment i
+ * is stored as '&lt;filename&gt;#&lt;i&gt;'. The separator is reserved, the
+ * StoreData refuses to store a file whose name contains it, so no other
+ * file is ever mistaken for a fragment.
+ * <p>
+ * Fragment keys aren't hashed independently, which could put two fragments
+ * on the same peer. Fragment i is placed i + 1 times the golden ratio
+ * around the ring from the file's own key, which keeps the manifest and
+ * every fragment as far from each other as their number allows.
+ *
+ * @param dataFragments k, fragments needed to rebuild the file
+ * @param parityFragments m, fragments which may be lost
+ * @param length of the whole file
+ * @author hayne
+ */
+public record ErasureManifest(int dataFragments, int parityFragments,
+                              long length) {
+
+  private static final int MAGIC = 0x45525343; // "ERSC"
+  private static final int BYTES = 4 + 4 + 4 + 8;
+  private static final int GOLDEN_STEP = 0x9e37; // 2^16/phi
+  private static final int MAX_FRAGMENTS = 256; // shards a code can have
+  public static final char SEPARATOR = '#';
+
+  public static String fragmentName(String filename, int fragment) {
+    return filename + SEPARATOR + fragment;
+  }
+
+  /**
+   * Returns the index of a fragment from its name.
+   *
+   * @param name of a stored file
+   * @return index of the fragment, -1 if the name isn't a fragment's
+   */
+  public static int fragmentIndex(String name) {
+    int start = name.lastIndexOf(SEPARATOR) + 1;
+    if (start == 0 || start == name.length() ||
+        (name.charAt(start) == '0' && start + 1 < name.length())) {
+      return -1;
+    }
+    int fragment = 0;
+    for (int i = start; i < name.length(); ++i) {
+      char c = name.charAt(i);
+      if (c < '0' || c > '9') {
+        return -1;
+      }
+      fragment = 10*fragment + (c - '0');
+      if (fragment >= MAX_FRAGMENTS) {
+        return -1;
+      }
+    }
+    return fragment;
+  }
+
+  /**
+   * Returns the name of the file a fragment belongs to.
+   *
+   * @param name of a fragment
+   * @return name of the erasure coded file
+   */
+  public static String baseName(String name) {
+    return name.substring(0, name.lastIndexOf(SEPARATOR));
+  }
+
+  /**
+   * Places a fragment around the ring relative to its file's key. No
+   * fragment shares the key of the manifest.
+   *
+   * @param key hex key of the erasure coded file
+   * @param fragment index of the fragment
+   * @return hex key of the fragment
+   */
+  public static String fragmentKey(String key, int fragment) {
+    int position =
+        (HexUtilities.convertHexToInt(key) + (fragment + 1)*GOLDEN_STEP) &
+        0xffff;
+    return HexUtilities.convertBytesToHex(
+        new byte[]{ (byte) (position >> 8), (byte) position });
+  }
+
+  /**
+   * Reads a manifest from the content of a file.
+   *
+   * @param content of a stored file, may be null
+   * @return the manifest, null if the content isn't one
+   */
+  public static ErasureManifest parse(ByteBuffer content) {
+    if (content == null || content.remaining() != BYTES) {
+      return null;
+    }
+    ByteBuffer buffer = content.duplicate();
+    if (buffer.getInt() != MAGIC) {
+      return null;
+    }
+    return new ErasureManifest(buffer.getInt(), buffer.getInt(),
+        buffer.getLong());
+  }
+
+  public static ErasureManifest parse(byte[] content) {
+    return content == null ? null : parse(ByteBuffer.wrap(content));
+  }
+
+  public byte[] toBytes() {
+    return ByteBuffer.allocate(BYTES)
+                     .putInt(MAGIC)
+                     .putInt(dataFragments)
+                     .putInt(parityFragments)
+                     .putLong(length)
+                     .array();
+  }
+
+  public int fragments() {
+    return dataFragments + parityFragments;
+  }
+
+  public ReedSolomon getCode() {
+    return new ReedSolomon(dataFragments, parityFragments);
+  }
+
+  public int fragmentBytes() {
+    return (int) Math.max(1, (length + dataFragments - 1)/dataFragments);
+  }
+
+  /**
+   * Rebuilds the file from its fragments.
+   *
+   * @param fragments k + m fragments, missing or damaged ones null
+   * @return content of the file, null if fewer than k fragments are usable
+   */
+  public byte[] decode(byte[][] fragments) {
+    int fragmentBytes = fragmentBytes();
+    for (int i = 0; i < fragments.length; ++i) {
+      if (fragments[i] != null && fragments[i].length != fragmentBytes) {
+        fragments[i] = null;
+      }
+    }
+    if (!getCode().reconstruct(fragments, fragmentBytes)) {
+      return null;
+    }
+    byte[] content = new byte[(int) length];
+    for (int i = 0; i < dataFragments; ++i) {
+      int offset = i*fragmentBytes;
+      if (offset < content.length) {
+        System.arraycopy(fragments[i], 0, content, offset,
+            Math.min(fragmentBytes, content.length - offset));
+      }
+    }
+    return content;
+  }
+}
@@ -0,0 +1,81 @@
+package cs555.system.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Stores every file as a file of its own, at its path.
+ *
+ * @author hayne
+ */
+public class FileStorageEngine implements StorageEngine {
+
+  private final MappedFileCache mappings =
+      new MappedFileCache(ApplicationProperties.mapCacheEntries);
+
+  @Override
+  public void open(Path directory) throws IOException {
+    Files.createDirectories(directory);
+  }
+
+  @Override
+  public void write(Path path, byte[] content) throws IOException {
+    Files.createDirectories(path.getParent());
+    mappings.invalidate(path);
+    Files.write(path, content);
+  }
+
+  @Override
+  public byte[] read(Path path) throws IOException {
+    return Files.readAllBytes(path);
+  }
+
+  @Override
+  public ByteBuffer map(Path path) throws IOException {
+    return mappings.map(path, 0).duplicate();
+  }
+
+  @Override
+  public void delete(Path path) throws IOException {
+    mappings.invalidate(path);
+    Files.delete(path);
+  }
+
+  @Override
+  public boolean exists(Path path) {
+    return Files.isRegularFile(path);
+  }
+
+  /**
+   * {@inheritDoc} Every entry is checked in parallel, as the scan is mostly
+   * spent waiting on the file system.
+   */
+  @Override
+  public Set<String> list(Path directory) throws IOException {
+    try (Stream<Path> stream = Files.list(directory)) {
+      return stream.parallel()
+                   .filter(Files::isRegularFile)
+                   .map(path -> path.getFileName().toString())
+                   .filter(filename -> !StorageIndex.isIndexFile(filename))
+                   .collect(Collectors.toSet());
+    } catch (NoSuchFileException e) {
+      return Set.of();
+    }
+  }
+
+  @Override
+  public void close() {
+    mappings.clear();
+  }
+
+  @Override
+  public String getStatistics() {
+    return "file per object, " + mappings.getStatistics();
+  }
+}
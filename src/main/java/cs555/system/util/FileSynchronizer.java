@@ -1,20 +1,96 @@
 package cs555.system.util;
 
+import cs555.system.cache.ObjectCache;
+
 import java.io.IOException;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
 
+/**
+ * Synchronizes access to the files stored at this peer. Each file has its own
+ * FileState, holding a read/write lock, so any number of threads can read the
+ * same file at once while writes and deletes are exclusive. Disk I/O only
+ * happens under a file's own lock, never inside a map operation, so a slow
+ * read or write can't block unrelated files. Content is kept by a
+ * StorageEngine, chosen by the storageEngine property.
+ * <p>
+ * Files which are served often are also kept in an ObjectCache. A file is
+ * offered to the cache once it has been served cacheAdmission times, and is
+ * invalidated whenever it is deleted, including when it is migrated away.
+ * Several FileSynchronizers may share one cache, as files are cached by
+ * path, so that a peer stays within a single cacheBytes budget.
+ * <p>
+ * Once recover() has been called, every file written or removed is also
+ * recorded in a StorageIndex, so that a restarted peer can find its files
+ * again.
+ *
+ * @author hayne
+ */
 public class FileSynchronizer {
 
   private final static Logger logger = Logger.getInstance();
-  private final ConcurrentHashMap<Path,Integer> files;
+  private final ConcurrentHashMap<Path,FileState> files;
+  private final Function<String,String> keyGenerator;
+  private final ConcurrentSkipListMap<Integer,Set<Path>> keyIndex;
+  private final StorageEngine engine;
+  private final ObjectCache cache;
+  private final boolean ownsCache;
+  private volatile StorageIndex index;
+
+  /**
+   * Per-file lock and metadata. A FileState is placed in the map before its
+   * file is written, with its write lock already held, so readers that find
+   * it wait for the write to finish. 'present' is only true once the file is
+   * on disk, and goes back to false when the file is deleted.
+   */
+  private static class FileState {
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final AtomicInteger reads = new AtomicInteger(0);
+    private volatile boolean present = false;
+  }
+
+  /**
+   * Default constructor.
+   *
+   * @param keyGenerator function which maps a filename to its hex key, used to
+   * index files by their position in id-space
+   */
+  public FileSynchronizer(Function<String,String> keyGenerator) {
+    this(keyGenerator, ObjectCache.fromProperties(), true);
+  }
+
+  /**
+   * Constructor for files which share the cache of another
+   * FileSynchronizer, which stays responsible for clearing it.
+   *
+   * @param keyGenerator function which maps a filename to its hex key
+   * @param shared the other FileSynchronizer
+   */
+  public FileSynchronizer(Function<String,String> keyGenerator,
+      FileSynchronizer shared) {
+    this(keyGenerator, shared.cache, false);
+  }
 
-  public FileSynchronizer() {
+  private FileSynchronizer(Function<String,String> keyGenerator,
+      ObjectCache cache, boolean ownsCache) {
     this.files = new ConcurrentHashMap<>();
+    this.keyGenerator = keyGenerator;
+    this.keyIndex = new ConcurrentSkipListMap<>();
+    this.engine = StorageEngine.fromProperties();
+    this.cache = cache;
+    this.ownsCache = ownsCache;
   }
 
   /**
@@ -26,73 +102,402 @@ public class FileSynchronizer {
    * @return true if the file was written, false otherwise
    */
   public boolean writeFile(Path path, byte[] content) {
-    AtomicBoolean written = new AtomicBoolean(false);
-    AtomicReference<byte[]> atomicContent = new AtomicReference<>(content);
-    files.compute(path, (key, value) -> {
-      if (value != null) {
+    FileState state = new FileState();
+    state.lock.writeLock().lock();
+    try {
+      if (files.putIfAbsent(path, state) != null) {
         logger.error(path + " already exists, not overwriting. ");
-        return value;
-      } else {
-        try {
-          Files.createDirectories(path.getParent());
-          Files.write(path, atomicContent.get());
-          written.set(true);
-          return 0;
-        } catch (IOException e) {
-          logger.error("Couldn't write " + path + ". " + e.getMessage());
-          return null;
-        }
+        return false;
       }
-    });
-    return written.get();
+      try {
+        engine.write(path, content);
+        state.present = true;
+        index(path);
+        journal(path, true);
+        return true;
+      } catch (IOException e) {
+        logger.error("Couldn't write " + path + ". " + e.getMessage());
+        files.remove(path, state);
+        return false;
+      }
+    } finally {
+      state.lock.writeLock().unlock();
+    }
   }
 
   /**
-   * An attempt at synchronizing access to files of a particular name.
+   * An attempt at synchronizing access to files of a particular name. Reads
+   * of the same file proceed concurrently.
    *
    * @param path path to the file
    * @return byte[] content of file, null if read failed or file isn't in the
    * files map
    */
   public byte[] readFile(Path path) {
-    AtomicReference<byte[]> content = new AtomicReference<>();
-    files.compute(path, (key, value) -> {
-      if (value == null) {
+    FileState state = files.get(path);
+    if (state == null) {
+      return null;
+    }
+    state.lock.readLock().lock();
+    try {
+      if (!state.present) {
         return null;
+      }
+      byte[] content;
+      ByteBuffer cached = cache.get(path);
+      if (cached != null) {
+        content = new byte[cached.remaining()];
+        cached.get(content);
       } else {
-        try {
-          content.set(Files.readAllBytes(path));
-          return value + 1;
-        } catch (IOException e) {
-          logger.error("Couldn't read " + path + ". " + e.getMessage());
-          return null;
+        content = engine.read(path);
+      }
+      state.reads.incrementAndGet();
+      return content;
+    } catch (IOException e) {
+      logger.error("Couldn't read " + path + ". " + e.getMessage());
+    } finally {
+      state.lock.readLock().unlock();
+    }
+    // The file is unreadable, so stop advertising it
+    remove(path, state, false);
+    return null;
+  }
+
+  /**
+   * Like readFile, but returns a read-only buffer over the file's content,
+   * from the cache or memory mapped by the storage engine, instead of
+   * copying it onto the heap. The buffer stays valid even if the file is
+   * deleted afterward. This is the path used to serve files, so it is also
+   * the one that admits files to the cache.
+   *
+   * @param path path to the file
+   * @return buffer over the content of file, null if mapping failed or file
+   * isn't in the files map
+   */
+  public ByteBuffer mapFile(Path path) {
+    FileState state = files.get(path);
+    if (state == null) {
+      return null;
+    }
+    state.lock.readLock().lock();
+    try {
+      if (!state.present) {
+        return null;
+      }
+      ByteBuffer content = cache.get(path);
+      if (content == null) {
+        content = engine.map(path);
+        if (state.reads.get() + 1 >= ApplicationProperties.cacheAdmission) {
+          cache.put(path, content);
         }
       }
-    });
-    return content.get();
+      state.reads.incrementAndGet();
+      return content;
+    } catch (IOException e) {
+      logger.error("Couldn't map " + path + ". " + e.getMessage());
+    } finally {
+      state.lock.readLock().unlock();
+    }
+    remove(path, state, false);
+    return null;
+  }
+
+  /**
+   * Maps a file for the peer's own use, such as checking what kind of file
+   * it is, without counting a read or offering it to the cache.
+   *
+   * @param path path to the file
+   * @return buffer over the content of file, null if it isn't stored
+   */
+  public ByteBuffer inspectFile(Path path) {
+    FileState state = files.get(path);
+    if (state == null) {
+      return null;
+    }
+    state.lock.readLock().lock();
+    try {
+      return state.present ? engine.map(path) : null;
+    } catch (IOException e) {
+      logger.error("Couldn't map " + path + ". " + e.getMessage());
+      return null;
+    } finally {
+      state.lock.readLock().unlock();
+    }
   }
 
   public void deleteFile(Path path) {
-    files.compute(path, (key, value) -> {
-      if (value != null) {
+    FileState state = files.get(path);
+    if (state != null) {
+      remove(path, state, true);
+    }
+  }
+
+  /**
+   * Removes a file from the map and the key index, and optionally from disk.
+   * The file is deleted from disk before its state leaves the map, so a new
+   * write of the same path can't start until the old file is gone.
+   *
+   * @param path path to the file
+   * @param state the file's state, as found in the map
+   * @param fromDisk true to delete the file from disk as well
+   */
+  private void remove(Path path, FileState state, boolean fromDisk) {
+    state.lock.writeLock().lock();
+    try {
+      if (!state.present) {
+        return;
+      }
+      state.present = false;
+      cache.invalidate(path);
+      if (fromDisk) {
         try {
-          Files.delete(path);
+          engine.delete(path);
         } catch (IOException e) {
           logger.error("Couldn't delete " + path + ". " + e.getMessage());
         }
       }
-      return null;
+      files.remove(path, state);
+      unindex(path);
+      journal(path, false);
+    } finally {
+      state.lock.writeLock().unlock();
+    }
+  }
+
+  private void journal(Path path, boolean added) {
+    StorageIndex current = index;
+    if (current != null) {
+      String filename = path.getFileName().toString();
+      if (added) {
+        current.added(filename);
+      } else {
+        current.removed(filename);
+      }
+    }
+  }
+
+  /**
+   * Finds the files left in this peer's directory by a previous run. If a
+   * StorageIndex was persisted, its files are adopted straight away, and the
+   * directory is scanned in the background to verify it. Otherwise, the
+   * directory is scanned before returning. Either way, a fresh checkpoint is
+   * written, and every later change is journaled. Only the first call does
+   * anything.
+   *
+   * @param directory where this peer's files are kept
+   * @param pathResolver maps a filename to its local path
+   * @return number of files recovered
+   */
+  public synchronized int recover(Path directory,
+      Function<String,Path> pathResolver) {
+    if (index != null) {
+      return 0;
+    }
+    long start = System.nanoTime();
+    StorageIndex storageIndex = new StorageIndex(directory, this::filenames);
+    Set<String> filenames = null;
+    try {
+      engine.open(directory);
+      filenames = storageIndex.load();
+    } catch (IOException e) {
+      logger.error("Couldn't load the storage index, scanning instead. " +
+                   e.getMessage());
+    }
+    boolean verify = filenames != null;
+    if (filenames == null) {
+      try {
+        filenames = engine.list(directory);
+      } catch (IOException e) {
+        logger.error("Couldn't scan " + directory + ". " + e.getMessage());
+        filenames = Set.of();
+      }
+    }
+    for (String filename : filenames) {
+      adopt(pathResolver.apply(filename), false);
+    }
+    index = storageIndex;
+    storageIndex.checkpoint();
+    logger.info("Recovered " + filenames.size() + " files from " +
+                (verify ? "the storage index" : "a directory scan") + " in " +
+                (System.nanoTime() - start)/1_000_000 + " ms.");
+    if (verify) {
+      Thread verifier = new Thread(() -> verify(directory, pathResolver));
+      verifier.setDaemon(true);
+      verifier.start();
+    }
+    return filenames.size();
+  }
+
+  /**
+   * Compares the recovered files against a scan of the directory. Files the
+   * index missed are adopted, and files it listed which aren't there are
+   * forgotten. Each is checked again under its own lock, in case it was
+   * written or deleted while the scan was running.
+   *
+   * @param directory where this peer's files are kept
+   * @param pathResolver maps a filename to its local path
+   */
+  private void verify(Path directory, Function<String,Path> pathResolver) {
+    Set<String> scanned;
+    try {
+      scanned = engine.list(directory);
+    } catch (IOException e) {
+      logger.error("Couldn't verify " + directory + ". " + e.getMessage());
+      return;
+    }
+    int adopted = 0;
+    int forgotten = 0;
+    for (String filename : scanned) {
+      if (adopt(pathResolver.apply(filename), true)) {
+        journal(pathResolver.apply(filename), true);
+        ++adopted;
+      }
+    }
+    for (Map.Entry<Path,FileState> entry : files.entrySet()) {
+      Path path = entry.getKey();
+      if (!scanned.contains(path.getFileName().toString()) &&
+          !engine.exists(path)) {
+        remove(path, entry.getValue(), false);
+        ++forgotten;
+      }
+    }
+    logger.info("Verified the storage index, adopting " + adopted +
+                " and forgetting " + forgotten + " files.");
+  }
+
+  /**
+   * Adds a file that is already stored to the map and the key index, without
+   * writing it.
+   *
+   * @param path path to the file
+   * @param check true to check that the engine really holds the file
+   * @return true if the file was adopted, false if it was already known or
+   * isn't actually stored
+   */
+  private boolean adopt(Path path, boolean check) {
+    FileState state = new FileState();
+    state.lock.writeLock().lock();
+    try {
+      if (files.putIfAbsent(path, state) != null) {
+        return false;
+      }
+      if (check && !engine.exists(path)) {
+        files.remove(path, state);
+        return false;
+      }
+      state.present = true;
+      index(path);
+      return true;
+    } finally {
+      state.lock.writeLock().unlock();
+    }
+  }
+
+  private Collection<String> filenames() {
+    List<String> filenames = new ArrayList<>();
+    files.forEach((path, state) -> {
+      if (state.present) {
+        filenames.add(path.getFileName().toString());
+      }
     });
+    return filenames;
+  }
+
+  /**
+   * Releases the storage engine, after checkpointing the storage index.
+   * Called when the peer leaves.
+   */
+  public void close() {
+    StorageIndex current = index;
+    if (current != null) {
+      current.close();
+    }
+    if (ownsCache) {
+      cache.clear();
+    }
+    engine.close();
+  }
+
+  public String getStatistics() {
+    return engine.getStatistics();
+  }
+
+  public String getCacheStatistics() {
+    return cache.getStatistics();
   }
 
   public boolean contains(Path path) {
-    return files.containsKey(path);
+    FileState state = files.get(path);
+    return state != null && state.present;
+  }
+
+  /**
+   * Returns the number of times a file has been read since it was stored.
+   *
+   * @param path path to the file
+   * @return read count, zero if the file isn't stored
+   */
+  public int getReads(Path path) {
+    FileState state = files.get(path);
+    return state == null ? 0 : state.reads.get();
   }
 
   public Set<Path> getFileSet() {
     return files.keySet();
   }
 
+  /**
+   * Returns the files whose keys fall within an arc of id-space, along with
+   * their keys. The arc runs clockwise from 'from' to 'to', both inclusive,
+   * and wraps past the top of id-space if 'from' is greater than 'to'.
+   *
+   * @param from first key of the arc
+   * @param to last key of the arc
+   * @return map of path to hex key, ordered by key
+   */
+  public Map<Path,String> getFilesInRange(int from, int to) {
+    Map<Path,String> range = new LinkedHashMap<>();
+    if (from <= to) {
+      collect(keyIndex.subMap(from, true, to, true), range);
+    } else {
+      collect(keyIndex.tailMap(from, true), range);
+      collect(keyIndex.headMap(to, true), range);
+    }
+    return range;
+  }
+
+  private void collect(NavigableMap<Integer,Set<Path>> keys,
+      Map<Path,String> range) {
+    keys.forEach((key, paths) -> {
+      String hexKey = String.format("%04x", key);
+      for (Path path : paths) {
+        range.put(path, hexKey);
+      }
+    });
+  }
+
+  private int keyOf(Path path) {
+    String key = keyGenerator.apply(path.getFileName().toString());
+    return HexUtilities.convertHexToInt(key);
+  }
+
+  private void index(Path path) {
+    keyIndex.compute(keyOf(path), (k, paths) -> {
+      if (paths == null) {
+        paths = ConcurrentHashMap.newKeySet();
+      }
+      paths.add(path);
+      return paths;
+    });
+  }
+
+  private void unindex(Path path) {
+    keyIndex.computeIfPresent(keyOf(path), (k, paths) -> {
+      paths.remove(path);
+      return paths.isEmpty() ? null : paths;
+    });
+  }
+
   /**
    * Prints a list of files in the map, with the number of times each has been
    * read.
@@ -100,7 +505,10 @@ public class FileSynchronizer {
   public void displayFiles() {
     StringBuilder sb = new StringBuilder();
     files.forEach((k, v) -> {
-      sb.append("  ").append(v).append("  ").append(k).append("\n");
+      if (v.present) {
+        sb.append("  ").append(v.reads.get()).append("  ").append(k)
+          .append("\n");
+      }
     });
     System.out.print(sb);
   }
@@ -0,0 +1,59 @@
+package cs555.system.util;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the most recent latency samples in a ring buffer, so percentiles
+ * follow the latency of the network as it is now, rather than over the
+ * node's whole lifetime.
+ *
+ * @author hayne
+ */
+public class LatencyWindow {
+
+  private final long[] samples;
+  private int next;
+  private int count;
+
+  /**
+   * Default constructor.
+   *
+   * @param capacity number of recent samples kept
+   */
+  public LatencyWindow(int capacity) {
+    this.samples = new long[capacity];
+    this.next = 0;
+    this.count = 0;
+  }
+
+  /**
+   * Records a sample, replacing the oldest once the window is full.
+   *
+   * @param nanos latency in nanoseconds
+   */
+  public synchronized void record(long nanos) {
+    samples[next] = nanos;
+    next = (next + 1)%samples.length;
+    count = Math.min(count + 1, samples.length);
+  }
+
+  public synchronized int size() {
+    return count;
+  }
+
+  /**
+   * Returns a percentile of the samples in the window.
+   *
+   * @param percentile between 0 and 100
+   * @return latency in nanoseconds, -1 if there are no samples
+   */
+  public synchronized long percentile(double percentile) {
+    if (count == 0) {
+      return -1;
+    }
+    long[] sorted = Arrays.copyOf(samples, count);
+    Arrays.sort(sorted);
+    int index = (int) Math.ceil(percentile/100*count) - 1;
+    return sorted[Math.max(0, Math.min(count - 1, index))];
+  }
+}
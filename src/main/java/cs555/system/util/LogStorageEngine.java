@@ -0,0 +1,444 @@
+package cs555.system.util;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+
+/**
+ * Stores files by appending them to segment files, instead of creating a file
+ * per object. Every write and delete is a sequential append to the active
+ * segment, and an in-memory index maps each filename to the location of its
+ * latest content. A delete appends a tombstone, so that the index can be
+ * rebuilt by replaying the segments in order when the engine is opened.
+ * <p>
+ * Once the active segment reaches segmentBytes it is sealed, forced to disk,
+ * and a new one is started. Appends to the active segment aren't forced, so
+ * they survive the process being killed, but the most recent of them may be
+ * lost, or torn, if the machine loses power. A torn record ends the replay
+ * of its segment, and is dropped when the segment is compacted. A background
+ * thread compacts sealed segments which are mostly
+ * garbage by copying their live records to the active segment, and then
+ * deleting the old segment file.
+ * <p>
+ * Segments are kept in a 'segments' directory next to the files they store,
+ * which is found from the first path the engine is given, or from the
+ * directory passed to list().
+ * <p>
+ * Reads served by map() slice a memory mapping of the whole segment, kept in
+ * a MappedFileCache.
+ * <p>
+ * Record layout: type (byte), filename length (int), filename (UTF-8),
+ * content length (int), content.
+ *
+ * @author hayne
+ */
+public class LogStorageEngine implements StorageEngine {
+
+  private static final Logger logger = Logger.getInstance();
+  private static final byte PUT = 1;
+  private static final byte TOMBSTONE = 2;
+  private static final int HEADER_BYTES = 9; // type + two lengths
+  private static final long COMPACTION_INTERVAL = 10; // seconds
+  private final long segmentBytes;
+  private final ConcurrentHashMap<String,Location> index;
+  private final ConcurrentSkipListMap<Integer,Segment> segments;
+  private final ReentrantReadWriteLock segmentLock;
+  private final AtomicLong compactions;
+  private final AtomicLong bytesReclaimed;
+  private final MappedFileCache mappings;
+  private ScheduledExecutorService compactor;
+  private volatile Path directory;
+  private volatile Segment active;
+
+  /**
+   * One segment file. 'dead' counts the bytes of records which have been
+   * superseded or deleted, and of the tombstones themselves. 'end' is where
+   * the last complete record ends, which is short of 'size' if the segment's
+   * tail was torn by a crash.
+   */
+  private static class Segment {
+    private final int id;
+    private final Path path;
+    private final FileChannel channel;
+    private final AtomicLong size;
+    private final AtomicLong dead;
+    private volatile long end;
+
+    private Segment(int id, Path path, FileChannel channel, long size) {
+      this.id = id;
+      this.path = path;
+      this.channel = channel;
+      this.size = new AtomicLong(size);
+      this.dead = new AtomicLong(0);
+      this.end = size;
+    }
+  }
+
+  /**
+   * Where the content of a file can be found.
+   *
+   * @param segment segment holding the record
+   * @param offset position of the content within the segment
+   * @param length length of the content
+   */
+  private record Location(Segment segment, long offset, int length) {
+    private int recordLength(String filename) {
+      return HEADER_BYTES + nameBytes(filename).length + length;
+    }
+  }
+
+  /**
+   * Default constructor.
+   *
+   * @param segmentBytes size at which the active segment is sealed
+   */
+  public LogStorageEngine(long segmentBytes) {
+    this.segmentBytes = segmentBytes;
+    this.index = new ConcurrentHashMap<>();
+    this.segments = new ConcurrentSkipListMap<>();
+    this.segmentLock = new ReentrantReadWriteLock();
+    this.compactions = new AtomicLong(0);
+    this.bytesReclaimed = new AtomicLong(0);
+    this.mappings = new MappedFileCache(ApplicationProperties.mapCacheEntries);
+  }
+
+  @Override
+  public void write(Path path, byte[] content) throws IOException {
+    String filename = path.getFileName().toString();
+    synchronized(this) {
+      open(path.getParent());
+      Location location = append(PUT, filename, content);
+      Location previous = index.put(filename, location);
+      if (previous != null) {
+        previous.segment.dead.addAndGet(previous.recordLength(filename));
+      }
+    }
+  }
+
+  @Override
+  public byte[] read(Path path) throws IOException {
+    String filename = path.getFileName().toString();
+    // Held so compaction can't close the segment during the read
+    segmentLock.readLock().lock();
+    try {
+      Location location = index.get(filename);
+      if (location == null) {
+        throw new NoSuchFileException(path.toString());
+      }
+      ByteBuffer buffer = ByteBuffer.allocate(location.length);
+      readFully(location.segment.channel, buffer, location.offset);
+      return buffer.array();
+    } finally {
+      segmentLock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public ByteBuffer map(Path path) throws IOException {
+    segmentLock.readLock().lock();
+    try {
+      Location location = index.get(path.getFileName().toString());
+      if (location == null) {
+        throw new NoSuchFileException(path.toString());
+      }
+      ByteBuffer segment = mappings.map(location.segment.path,
+          location.offset + location.length);
+      return segment.slice((int) location.offset, location.length);
+    } finally {
+      segmentLock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public void delete(Path path) throws IOException {
+    String filename = path.getFileName().toString();
+    synchronized(this) {
+      Location previous = index.remove(filename);
+      if (previous == null) {
+        throw new NoSuchFileException(path.toString());
+      }
+      previous.segment.dead.addAndGet(previous.recordLength(filename));
+      Location tombstone = append(TOMBSTONE, filename, new byte[0]);
+      tombstone.segment.dead.addAndGet(tombstone.recordLength(filename));
+    }
+  }
+
+  @Override
+  public boolean exists(Path path) {
+    if (directory == null) {
+      synchronized(this) {
+        try {
+          open(path.getParent());
+        } catch (IOException e) {
+          logger.error("Couldn't open segments. " + e.getMessage());
+          return false;
+        }
+      }
+    }
+    return index.containsKey(path.getFileName().toString());
+  }
+
+  /**
+   * {@inheritDoc} The segments are replayed, if they haven't been already,
+   * and the names are taken from the rebuilt index.
+   */
+  @Override
+  public synchronized Set<String> list(Path directory) throws IOException {
+    open(directory);
+    return new HashSet<>(index.keySet());
+  }
+
+  /**
+   * {@inheritDoc} Finds the segment directory, replays any existing segments
+   * to rebuild the index, starts a new active segment, and starts compaction.
+   * Only the first call does anything.
+   */
+  @Override
+  public synchronized void open(Path parent) throws IOException {
+    if (directory != null) {
+      return;
+    }
+    Path segmentDirectory = parent.resolve("segments");
+    Files.createDirectories(segmentDirectory);
+    List<Path> existing;
+    try (Stream<Path> stream = Files.list(segmentDirectory)) {
+      existing = stream.filter(p -> p.toString().endsWith(".log"))
+                       .sorted().toList();
+    }
+    int nextId = 0;
+    for (Path segmentPath : existing) {
+      Segment segment = openSegment(segmentPath, StandardOpenOption.READ);
+      segments.put(segment.id, segment);
+      replay(segment);
+      nextId = Math.max(nextId, segment.id + 1);
+    }
+    // Published only once the index is complete, as exists() checks it
+    // without taking the engine's monitor
+    directory = segmentDirectory;
+    active = createSegment(nextId);
+    logger.debug("Opened " + existing.size() + " segments with " +
+                 index.size() + " live files in " + directory);
+    compactor = Executors.newSingleThreadScheduledExecutor();
+    compactor.scheduleWithFixedDelay(this::compact, COMPACTION_INTERVAL,
+        COMPACTION_INTERVAL, TimeUnit.SECONDS);
+  }
+
+  private Segment openSegment(Path path, StandardOpenOption... options)
+      throws IOException {
+    String name = path.getFileName().toString();
+    int id = Integer.parseInt(name.substring(0, name.indexOf('.')));
+    FileChannel channel = FileChannel.open(path, options);
+    return new Segment(id, path, channel, channel.size());
+  }
+
+  private Segment createSegment(int id) throws IOException {
+    Path path = directory.resolve(String.format("%08d.log", id));
+    Segment segment = openSegment(path, StandardOpenOption.CREATE_NEW,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+    segments.put(id, segment);
+    return segment;
+  }
+
+  /**
+   * Rebuilds the index from a segment's records. A record cut short by a
+   * crash ends the replay of that segment, and the torn bytes are counted as
+   * dead.
+   *
+   * @param segment to replay
+   * @throws IOException if the segment couldn't be read
+   */
+  private void replay(Segment segment) throws IOException {
+    long position = 0;
+    try (DataInputStream in = new DataInputStream(
+        new BufferedInputStream(Files.newInputStream(segment.path)))) {
+      while (true) {
+        byte type = in.readByte();
+        String filename = readName(in);
+        int length = in.readInt();
+        in.skipNBytes(length);
+        long offset = position + HEADER_BYTES + nameBytes(filename).length;
+        Location location = new Location(segment, offset, length);
+        Location previous = type == PUT ? index.put(filename, location) :
+                                index.remove(filename);
+        if (previous != null) {
+          previous.segment.dead.addAndGet(previous.recordLength(filename));
+        }
+        if (type == TOMBSTONE) {
+          segment.dead.addAndGet(location.recordLength(filename));
+        }
+        position = offset + length;
+      }
+    } catch (EOFException e) {
+      // End of segment
+    }
+    segment.end = position;
+    segment.dead.addAndGet(segment.size.get() - position);
+  }
+
+  /**
+   * Appends a record to the active segment, sealing it and starting a new one
+   * first if the record would push it past segmentBytes. Callers must hold
+   * the engine's monitor.
+   *
+   * @param type PUT or TOMBSTONE
+   * @param filename name of the file
+   * @param content content of the file, empty for a TOMBSTONE
+   * @return location of the record's content
+   * @throws IOException if the record couldn't be written
+   */
+  private Location append(byte type, String filename, byte[] content)
+      throws IOException {
+    byte[] name = nameBytes(filename);
+    int recordLength = HEADER_BYTES + name.length + content.length;
+    if (active.size.get() > 0 &&
+        active.size.get() + recordLength > segmentBytes) {
+      active.channel.force(false); // seal
+      active = createSegment(active.id + 1);
+    }
+    ByteBuffer record = ByteBuffer.allocate(recordLength);
+    record.put(type).putInt(name.length).put(name).putInt(content.length)
+          .put(content).flip();
+    long start = active.size.get();
+    while (record.hasRemaining()) {
+      active.channel.write(record, start + record.position());
+    }
+    active.end = active.size.addAndGet(recordLength);
+    return new Location(active, start + HEADER_BYTES + name.length,
+        content.length);
+  }
+
+  /**
+   * Compacts every sealed segment in which at least half of the bytes are
+   * dead.
+   */
+  private void compact() {
+    for (Segment segment : segments.values()) {
+      long size = segment.size.get();
+      if (segment == active || size == 0 || segment.dead.get()*2 < size) {
+        continue;
+      }
+      try {
+        compact(segment);
+      } catch (IOException e) {
+        logger.error("Couldn't compact " + segment.path + ". " +
+                     e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Copies the live records of a segment to the active segment, then deletes
+   * it. A tombstone is only copied if an older segment exists, as that is the
+   * only place the record it deletes could still be. Only complete records
+   * are read, so a torn tail is dropped. The copies are forced to disk
+   * before the segment is deleted.
+   *
+   * @param segment sealed segment to compact
+   * @throws IOException if the segment couldn't be read, or records couldn't
+   * be copied
+   */
+  private void compact(Segment segment) throws IOException {
+    boolean oldest = segments.firstKey() == segment.id;
+    try (DataInputStream in = new DataInputStream(
+        new BufferedInputStream(Files.newInputStream(segment.path)))) {
+      long position = 0;
+      while (position < segment.end) {
+        byte type = in.readByte();
+        String filename = readName(in);
+        byte[] content = in.readNBytes(in.readInt());
+        long offset = position + HEADER_BYTES + nameBytes(filename).length;
+        position = offset + content.length;
+        synchronized(this) {
+          Location current = index.get(filename);
+          if (type == PUT && current != null &&
+              current.segment == segment && current.offset == offset) {
+            index.put(filename, append(PUT, filename, content));
+          } else if (type == TOMBSTONE && !oldest && current == null) {
+            append(TOMBSTONE, filename, content);
+          }
+        }
+      }
+    }
+    active.channel.force(false);
+    segmentLock.writeLock().lock();
+    try {
+      segments.remove(segment.id);
+      mappings.invalidate(segment.path);
+      segment.channel.close();
+      Files.delete(segment.path);
+    } finally {
+      segmentLock.writeLock().unlock();
+    }
+    compactions.incrementAndGet();
+    bytesReclaimed.addAndGet(segment.dead.get());
+    logger.debug("Compacted " + segment.path + ", reclaiming " +
+                 segment.dead.get() + " bytes.");
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer,
+      long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      int read = channel.read(buffer, position + buffer.position());
+      if (read < 0) {
+        throw new EOFException("Segment ended before record did.");
+      }
+    }
+  }
+
+  private static byte[] nameBytes(String filename) {
+    return filename.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static String readName(DataInputStream in) throws IOException {
+    return new String(in.readNBytes(in.readInt()), StandardCharsets.UTF_8);
+  }
+
+  @Override
+  public synchronized void close() {
+    if (compactor != null) {
+      compactor.shutdownNow();
+    }
+    mappings.clear();
+    for (Segment segment : new ArrayList<>(segments.values())) {
+      try {
+        segment.channel.close();
+      } catch (IOException e) {
+        logger.error("Couldn't close " + segment.path + ". " + e.getMessage());
+      }
+    }
+  }
+
+  @Override
+  public String getStatistics() {
+    long size = 0;
+    long dead = 0;
+    for (Segment segment : segments.values()) {
+      size += segment.size.get();
+      dead += segment.dead.get();
+    }
+    return "segments " + segments.size() + ", live files " + index.size() +
+           ", bytes " + size + ", dead bytes " + dead + ", compactions " +
+           compactions.get() + ", reclaimed " + bytesReclaimed.get() + ", " +
+           mappings.getStatistics();
+  }
+}
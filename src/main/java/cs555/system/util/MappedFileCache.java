@@ -0,0 +1,106 @@
+package cs555.system.util;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded, least-recently-used cache of read-only memory mappings. Serving a
+ * file from a mapping reads it straight out of the page cache, so hot files
+ * don't need a heap copy per read. Evicted mappings are left for the garbage
+ * collector to unmap, which also keeps them valid for any reader still using
+ * one.
+ *
+ * @author hayne
+ */
+public class MappedFileCache {
+
+  private final int capacity;
+  private final LinkedHashMap<Path,MappedByteBuffer> mappings;
+  private final AtomicLong hits;
+  private final AtomicLong misses;
+
+  /**
+   * Default constructor.
+   *
+   * @param capacity most mappings to keep open at once
+   */
+  public MappedFileCache(int capacity) {
+    this.capacity = capacity;
+    this.mappings = new LinkedHashMap<>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(
+          Map.Entry<Path,MappedByteBuffer> eldest) {
+        return size() > MappedFileCache.this.capacity;
+      }
+    };
+    this.hits = new AtomicLong(0);
+    this.misses = new AtomicLong(0);
+  }
+
+  /**
+   * Returns a mapping of at least 'minimumSize' bytes of a file, mapping the
+   * whole file if there is no cached mapping large enough. Files can grow,
+   * so a mapping made before the bytes were written is replaced.
+   *
+   * @param path of the file to map
+   * @param minimumSize fewest bytes the mapping must cover
+   * @return read-only mapping of the file
+   * @throws IOException if the file couldn't be mapped
+   */
+  public MappedByteBuffer map(Path path, long minimumSize) throws IOException {
+    synchronized(mappings) {
+      MappedByteBuffer mapping = mappings.get(path);
+      if (mapping != null && mapping.capacity() >= minimumSize) {
+        hits.incrementAndGet();
+        return mapping;
+      }
+    }
+    misses.incrementAndGet();
+    MappedByteBuffer mapping;
+    try (FileChannel channel = FileChannel.open(path,
+        StandardOpenOption.READ)) {
+      mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    synchronized(mappings) {
+      mappings.put(path, mapping);
+    }
+    return mapping;
+  }
+
+  /**
+   * Drops the mapping of a file, because it has been deleted or rewritten.
+   *
+   * @param path of the file
+   */
+  public void invalidate(Path path) {
+    synchronized(mappings) {
+      mappings.remove(path);
+    }
+  }
+
+  public void clear() {
+    synchronized(mappings) {
+      mappings.clear();
+    }
+  }
+
+  /**
+   * Returns a one-line summary of the cache's use.
+   *
+   * @return statistics string
+   */
+  public String getStatistics() {
+    int size;
+    synchronized(mappings) {
+      size = mappings.size();
+    }
+    return "mapped " + size + ", map hits " + hits.get() + ", map misses " +
+           misses.get();
+  }
+}
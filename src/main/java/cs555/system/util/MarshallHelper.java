@@ -4,6 +4,7 @@ import cs555.system.routing.LeafSet;
 import cs555.system.routing.RoutingTable;
 
 import java.io.*;
+import java.util.List;
 
 /**
  * Class which contains functions that help to marshall and unmarshall slightly
@@ -67,7 +68,8 @@ public class MarshallHelper {
   }
 
   /**
-   * Serialize RoutingTable into DataOutputStream.
+   * Serialize RoutingTable into DataOutputStream. The occupant of every slot
+   * is written first, followed by the backups held for each slot.
    *
    * @param routingTable to be serialized
    * @param dout to write serialized object to
@@ -86,6 +88,15 @@ public class MarshallHelper {
         }
       }
     }
+    for (int row = 0; row < 4; ++row) {
+      for (int col = 0; col < 16; ++col) {
+        List<PeerInformation> backups = routingTable.getBackups(row, col);
+        dout.writeByte(backups.size());
+        for (PeerInformation backup : backups) {
+          marshallPeerInformation(backup, dout);
+        }
+      }
+    }
   }
 
   /**
@@ -106,7 +117,16 @@ public class MarshallHelper {
         }
       }
     }
-    return new RoutingTable(self, table);
+    RoutingTable routingTable = new RoutingTable(self, table);
+    for (int row = 0; row < 4; ++row) {
+      for (int col = 0; col < 16; ++col) {
+        int size = din.readByte();
+        for (int i = 0; i < size; ++i) {
+          routingTable.appendBackup(row, col, unmarshallPeerInformation(din));
+        }
+      }
+    }
+    return routingTable;
   }
 
   /**
@@ -0,0 +1,254 @@
+package cs555.system.util;
+
+import java.util.Arrays;
+
+/**
+ * Systematic Reed-Solomon erasure code over GF(2^8). Content is split into
+ * k data shards, and m parity shards are computed from them, such that the
+ * content can be rebuilt from any k of the k + m shards.
+ * <p>
+ * The encoding matrix is the k x k identity, so data shards are stored
+ * as-is, on top of an m x k Cauchy matrix. Every square submatrix of a
+ * Cauchy matrix is invertible, so any k rows of the encoding matrix are too.
+ * Multiplication goes through a full 256 x 256 product table, so coding a
+ * shard is one table lookup and one XOR per byte per coefficient.
+ *
+ * @author hayne
+ */
+public class ReedSolomon {
+
+  private static final int POLYNOMIAL = 0x11d; // x^8 + x^4 + x^3 + x^2 + 1
+  private static final int[] EXP = new int[510];
+  private static final int[] LOG = new int[256];
+  private static final byte[][] PRODUCTS = new byte[256][256];
+  private final int dataShards;
+  private final int parityShards;
+  private final byte[][] matrix;
+
+  static {
+    int x = 1;
+    for (int i = 0; i < 255; ++i) {
+      EXP[i] = x;
+      LOG[x] = i;
+      x <<= 1;
+      if ((x & 0x100) != 0) {
+        x ^= POLYNOMIAL;
+      }
+    }
+    for (int i = 255; i < EXP.length; ++i) {
+      EXP[i] = EXP[i - 255];
+    }
+    for (int a = 1; a < 256; ++a) {
+      for (int b = 1; b < 256; ++b) {
+        PRODUCTS[a][b] = (byte) EXP[LOG[a] + LOG[b]];
+      }
+    }
+  }
+
+  /**
+   * Default constructor.
+   *
+   * @param dataShards k, shards the content is split into
+   * @param parityShards m, shards that may be lost
+   */
+  public ReedSolomon(int dataShards, int parityShards) {
+    if (dataShards < 1 || parityShards < 0 ||
+        dataShards + parityShards > 256) {
+      throw new IllegalArgumentException(
+          "Can't code " + dataShards + " + " + parityShards + " shards.");
+    }
+    this.dataShards = dataShards;
+    this.parityShards = parityShards;
+    this.matrix = new byte[dataShards + parityShards][dataShards];
+    for (int i = 0; i < dataShards; ++i) {
+      matrix[i][i] = 1;
+    }
+    for (int r = 0; r < parityShards; ++r) {
+      for (int c = 0; c < dataShards; ++c) {
+        matrix[dataShards + r][c] = (byte) inverse((dataShards + r) ^ c);
+      }
+    }
+  }
+
+  private static int multiply(int a, int b) {
+    return PRODUCTS[a][b] & 0xff;
+  }
+
+  private static int inverse(int a) {
+    return EXP[255 - LOG[a]];
+  }
+
+  public int getDataShards() {
+    return dataShards;
+  }
+
+  public int getTotalShards() {
+    return dataShards + parityShards;
+  }
+
+  /**
+   * Returns the size of each shard of content of a given length. The last
+   * data shard is padded with zeros.
+   *
+   * @param length of the content
+   * @return bytes per shard
+   */
+  public int shardBytes(long length) {
+    return (int) Math.max(1, (length + dataShards - 1)/dataShards);
+  }
+
+  /**
+   * Splits content into data shards and computes its parity shards.
+   *
+   * @param content to encode
+   * @return k data shards followed by m parity shards, all the same size
+   */
+  public byte[][] encode(byte[] content) {
+    int shardBytes = shardBytes(content.length);
+    byte[][] shards = new byte[getTotalShards()][shardBytes];
+    for (int i = 0; i < dataShards; ++i) {
+      int offset = i*shardBytes;
+      if (offset < content.length) {
+        System.arraycopy(content, offset, shards[i], 0,
+            Math.min(shardBytes, content.length - offset));
+      }
+    }
+    encodeParity(shards, shardBytes);
+    return shards;
+  }
+
+  /**
+   * Computes the parity shards from the data shards.
+   *
+   * @param shards k data shards, then m parity shards which are overwritten
+   * @param length bytes per shard
+   */
+  public void encodeParity(byte[][] shards, int length) {
+    for (int r = 0; r < parityShards; ++r) {
+      code(matrix[dataShards + r], shards, shards[dataShards + r], length);
+    }
+  }
+
+  /**
+   * Rebuilds every missing shard from any k shards which are present.
+   *
+   * @param shards k + m shards, missing ones null
+   * @param length bytes per shard
+   * @return false if fewer than k shards are present
+   */
+  public boolean reconstruct(byte[][] shards, int length) {
+    int[] present = new int[dataShards];
+    int count = 0;
+    boolean dataMissing = false;
+    for (int i = 0; i < shards.length; ++i) {
+      if (shards[i] != null && count < dataShards) {
+        present[count++] = i;
+      } else if (shards[i] == null && i < dataShards) {
+        dataMissing = true;
+      }
+    }
+    if (count < dataShards) {
+      return false;
+    }
+    if (dataMissing) {
+      byte[][] rows = new byte[dataShards][];
+      byte[][] inputs = new byte[dataShards][];
+      for (int i = 0; i < dataShards; ++i) {
+        rows[i] = matrix[present[i]];
+        inputs[i] = shards[present[i]];
+      }
+      byte[][] decoding = invert(rows);
+      for (int i = 0; i < dataShards; ++i) {
+        if (shards[i] == null) {
+          shards[i] = new byte[length];
+          code(decoding[i], inputs, shards[i], length);
+        }
+      }
+    }
+    for (int r = 0; r < parityShards; ++r) {
+      if (shards[dataShards + r] == null) {
+        shards[dataShards + r] = new byte[length];
+        code(matrix[dataShards + r], shards, shards[dataShards + r], length);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Writes the linear combination of the first k inputs, weighted by a row
+   * of coefficients, to an output shard.
+   *
+   * @param coefficients k coefficients
+   * @param inputs shards to combine
+   * @param output shard to overwrite
+   * @param length bytes per shard
+   */
+  private void code(byte[] coefficients, byte[][] inputs, byte[] output,
+      int length) {
+    Arrays.fill(output, 0, length, (byte) 0);
+    for (int c = 0; c < dataShards; ++c) {
+      int coefficient = coefficients[c] & 0xff;
+      byte[] input = inputs[c];
+      if (coefficient == 0) {
+        continue;
+      } else if (coefficient == 1) {
+        for (int i = 0; i < length; ++i) {
+          output[i] ^= input[i];
+        }
+      } else {
+        byte[] products = PRODUCTS[coefficient];
+        for (int i = 0; i < length; ++i) {
+          output[i] ^= products[input[i] & 0xff];
+        }
+      }
+    }
+  }
+
+  /**
+   * Inverts a square matrix by Gauss-Jordan elimination.
+   *
+   * @param rows of the matrix, which aren't modified
+   * @return the inverse
+   */
+  private static byte[][] invert(byte[][] rows) {
+    int size = rows.length;
+    int[][] work = new int[size][2*size];
+    for (int r = 0; r < size; ++r) {
+      for (int c = 0; c < size; ++c) {
+        work[r][c] = rows[r][c] & 0xff;
+      }
+      work[r][size + r] = 1;
+    }
+    for (int column = 0; column < size; ++column) {
+      int pivot = column;
+      while (pivot < size && work[pivot][column] == 0) {
+        ++pivot;
+      }
+      if (pivot == size) {
+        throw new IllegalArgumentException("Matrix is singular.");
+      }
+      int[] swap = work[pivot];
+      work[pivot] = work[column];
+      work[column] = swap;
+      int scale = inverse(work[column][column]);
+      for (int c = 0; c < 2*size; ++c) {
+        work[column][c] = multiply(work[column][c], scale);
+      }
+      for (int r = 0; r < size; ++r) {
+        int factor = work[r][column];
+        if (r != column && factor != 0) {
+          for (int c = 0; c < 2*size; ++c) {
+            work[r][c] ^= multiply(factor, work[column][c]);
+          }
+        }
+      }
+    }
+    byte[][] inverse = new byte[size][size];
+    for (int r = 0; r < size; ++r) {
+      for (int c = 0; c < size; ++c) {
+        inverse[r][c] = (byte) work[r][size + c];
+      }
+    }
+    return inverse;
+  }
+}
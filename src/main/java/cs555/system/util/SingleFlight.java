@@ -0,0 +1,67 @@
+package cs555.system.util;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent loads of the same key. The first caller for a key
+ * runs the load, and every caller arriving while it is in flight waits for,
+ * and shares, its result instead of repeating the work. Nothing is kept once
+ * the load finishes, so later callers always see fresh results.
+ *
+ * @param <K> type of key
+ * @param <V> type of result
+ * @author hayne
+ */
+public class SingleFlight<K, V> {
+
+  private final ConcurrentHashMap<K,CompletableFuture<V>> inFlight;
+  private final AtomicLong loads;
+  private final AtomicLong coalesced;
+
+  public SingleFlight() {
+    this.inFlight = new ConcurrentHashMap<>();
+    this.loads = new AtomicLong(0);
+    this.coalesced = new AtomicLong(0);
+  }
+
+  /**
+   * Returns the result of loading a key, sharing a load already in flight.
+   *
+   * @param key to load
+   * @param loader runs the load, if no other caller is
+   * @return result of the load
+   */
+  public V execute(K key, Supplier<V> loader) {
+    CompletableFuture<V> created = new CompletableFuture<>();
+    CompletableFuture<V> existing = inFlight.putIfAbsent(key, created);
+    if (existing != null) {
+      coalesced.incrementAndGet();
+      return existing.join();
+    }
+    loads.incrementAndGet();
+    try {
+      V value = loader.get();
+      created.complete(value);
+      return value;
+    } catch (RuntimeException e) {
+      created.completeExceptionally(e);
+      throw e;
+    } finally {
+      inFlight.remove(key, created);
+    }
+  }
+
+  /**
+   * Returns a one-line summary of coalescing.
+   *
+   * @return statistics string
+   */
+  public String getStatistics() {
+    long total = loads.get() + coalesced.get();
+    return "loads " + loads.get() + ", coalesced " + coalesced.get() + " (" +
+           (total == 0 ? 0 : 100*coalesced.get()/total) + "% of requests)";
+  }
+}
@@ -0,0 +1,104 @@
+package cs555.system.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Set;
+
+/**
+ * Where the FileSynchronizer keeps file content. The FileSynchronizer does
+ * all of the locking, so an engine is never asked to read a file while it is
+ * being written or deleted, and never asked to write a file twice without
+ * deleting it in between.
+ *
+ * @author hayne
+ */
+public interface StorageEngine {
+
+  /**
+   * Prepares the engine to hold files in a directory, loading anything a
+   * previous run left there. Engines also open themselves on first write.
+   *
+   * @param directory the peer's directory
+   * @throws IOException if the directory couldn't be prepared
+   */
+  void open(Path directory) throws IOException;
+
+  /**
+   * Stores the content of a file.
+   *
+   * @param path path to the file
+   * @param content content of the file
+   * @throws IOException if the content couldn't be stored
+   */
+  void write(Path path, byte[] content) throws IOException;
+
+  /**
+   * Returns the content of a file.
+   *
+   * @param path path to the file
+   * @return content of the file
+   * @throws IOException if the file doesn't exist or couldn't be read
+   */
+  byte[] read(Path path) throws IOException;
+
+  /**
+   * Returns the content of a file as a read-only buffer, backed by a memory
+   * mapping where possible, so it can be sent without a heap copy.
+   *
+   * @param path path to the file
+   * @return buffer positioned at the start of the content
+   * @throws IOException if the file doesn't exist or couldn't be mapped
+   */
+  ByteBuffer map(Path path) throws IOException;
+
+  /**
+   * Removes a file.
+   *
+   * @param path path to the file
+   * @throws IOException if the file doesn't exist or couldn't be removed
+   */
+  void delete(Path path) throws IOException;
+
+  /**
+   * Checks whether a file is stored.
+   *
+   * @param path path to the file
+   * @return true if the engine holds the file
+   */
+  boolean exists(Path path);
+
+  /**
+   * Finds every file the engine holds in a directory, by scanning it. Used to
+   * recover, or verify, the list of files a peer stores after a restart.
+   *
+   * @param directory the peer's directory
+   * @return names of the files stored there
+   * @throws IOException if the directory couldn't be scanned
+   */
+  Set<String> list(Path directory) throws IOException;
+
+  /**
+   * Releases any resources held by the engine.
+   */
+  void close();
+
+  /**
+   * Returns a one-line summary of the engine's state.
+   *
+   * @return statistics string
+   */
+  String getStatistics();
+
+  /**
+   * Creates the engine named by the storageEngine property.
+   *
+   * @return 'log' for a LogStorageEngine, otherwise a FileStorageEngine
+   */
+  static StorageEngine fromProperties() {
+    if (ApplicationProperties.storageEngine.equalsIgnoreCase("log")) {
+      return new LogStorageEngine(ApplicationProperties.segmentBytes);
+    }
+    return new FileStorageEngine();
+  }
+}
@@ -0,0 +1,185 @@
+package cs555.system.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * Persisted list of the files a peer stores, so a restarted peer knows what
+ * it holds without scanning its directory. The list is kept as a checkpoint,
+ * holding every filename, and a journal of the files added and removed since
+ * the checkpoint was taken. Once the journal reaches CHECKPOINT_INTERVAL
+ * records, a new checkpoint is written to a temporary file and moved into
+ * place, and the journal is started over.
+ *
+ * @author hayne
+ */
+public class StorageIndex {
+
+  private static final Logger logger = Logger.getInstance();
+  private static final String CHECKPOINT = ".index.checkpoint";
+  private static final String JOURNAL = ".index.journal";
+  private static final int CHECKPOINT_INTERVAL = 10_000; // journal records
+  private static final byte ADDED = 1;
+  private static final byte REMOVED = 2;
+  private final Path directory;
+  private final Supplier<Collection<String>> snapshot;
+  private DataOutputStream journal;
+  private int journalRecords;
+
+  /**
+   * Default constructor.
+   *
+   * @param directory where the peer's files, and the index, are kept
+   * @param snapshot supplies every filename currently stored, for checkpoints
+   */
+  public StorageIndex(Path directory, Supplier<Collection<String>> snapshot) {
+    this.directory = directory;
+    this.snapshot = snapshot;
+    this.journalRecords = 0;
+  }
+
+  /**
+   * Checks if a file in the peer's directory belongs to the index, rather
+   * than being a stored file.
+   *
+   * @param filename to check
+   * @return true if the file is part of the index
+   */
+  public static boolean isIndexFile(String filename) {
+    return filename.equals(CHECKPOINT) || filename.equals(JOURNAL) ||
+           filename.equals(CHECKPOINT + ".tmp");
+  }
+
+  /**
+   * Reads the checkpoint and replays the journal over it. A journal record
+   * cut short by a crash ends the replay.
+   *
+   * @return filenames in the index, null if no index has been persisted
+   * @throws IOException if the index exists but couldn't be read
+   */
+  public synchronized Set<String> load() throws IOException {
+    Path checkpoint = directory.resolve(CHECKPOINT);
+    Path journalPath = directory.resolve(JOURNAL);
+    if (!Files.exists(checkpoint) && !Files.exists(journalPath)) {
+      return null;
+    }
+    Set<String> filenames = new HashSet<>();
+    if (Files.exists(checkpoint)) {
+      try (DataInputStream in = new DataInputStream(
+          new BufferedInputStream(Files.newInputStream(checkpoint)))) {
+        int count = in.readInt();
+        for (int i = 0; i < count; ++i) {
+          filenames.add(in.readUTF());
+        }
+      }
+    }
+    if (Files.exists(journalPath)) {
+      try (DataInputStream in = new DataInputStream(
+          new BufferedInputStream(Files.newInputStream(journalPath)))) {
+        while (true) {
+          byte type = in.readByte();
+          String filename = in.readUTF();
+          if (type == ADDED) {
+            filenames.add(filename);
+          } else {
+            filenames.remove(filename);
+          }
+          ++journalRecords;
+        }
+      } catch (EOFException e) {
+        // End of journal
+      }
+    }
+    return filenames;
+  }
+
+  /**
+   * Writes a checkpoint of every stored file and starts a new journal.
+   */
+  public synchronized void checkpoint() {
+    Path checkpoint = directory.resolve(CHECKPOINT);
+    Path temporary = directory.resolve(CHECKPOINT + ".tmp");
+    try {
+      Files.createDirectories(directory);
+      Collection<String> filenames = snapshot.get();
+      try (DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+        out.writeInt(filenames.size());
+        for (String filename : filenames) {
+          out.writeUTF(filename);
+        }
+      }
+      Files.move(temporary, checkpoint, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+      if (journal != null) {
+        journal.close();
+      }
+      journal = new DataOutputStream(new BufferedOutputStream(
+          Files.newOutputStream(directory.resolve(JOURNAL),
+              StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+              StandardOpenOption.WRITE)));
+      journalRecords = 0;
+      logger.debug("Checkpointed " + filenames.size() + " files.");
+    } catch (IOException e) {
+      logger.error("Couldn't checkpoint the storage index. " + e.getMessage());
+    }
+  }
+
+  public void added(String filename) {
+    append(ADDED, filename);
+  }
+
+  public void removed(String filename) {
+    append(REMOVED, filename);
+  }
+
+  /**
+   * Appends a record to the journal, and flushes it so it survives the
+   * process being killed. Starts a new checkpoint if the journal is long.
+   *
+   * @param type ADDED or REMOVED
+   * @param filename of the file
+   */
+  private synchronized void append(byte type, String filename) {
+    if (journal == null || journalRecords >= CHECKPOINT_INTERVAL) {
+      checkpoint();
+      return; // the checkpoint already includes this change
+    }
+    try {
+      journal.writeByte(type);
+      journal.writeUTF(filename);
+      journal.flush();
+      ++journalRecords;
+    } catch (IOException e) {
+      logger.error("Couldn't journal " + filename + ". " + e.getMessage());
+    }
+  }
+
+  /**
+   * Writes a final checkpoint and closes the journal.
+   */
+  public synchronized void close() {
+    checkpoint();
+    if (journal == null) {
+      return;
+    }
+    try {
+      journal.close();
+    } catch (IOException e) {
+      logger.error("Couldn't close the storage journal. " + e.getMessage());
+    }
+    journal = null;
+  }
+}
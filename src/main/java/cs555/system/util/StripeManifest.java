@@ -0,0 +1,117 @@
+package cs555.system.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Describes a file which was striped across the network in fixed-size
+ * blocks. The manifest is stored under the file's own name, and block i is
+ * stored as its own file, named '&lt;filename&gt;#blk&lt;i&gt;', so each
+ * block has its own key and, usually, its own owner. The name starts with
+ * the same reserved separator as erasure coded fragments, so no file the
+ * StoreData stores can be mistaken for a block.
+ *
+ * @param blockBytes size of every block but the last
+ * @param length of the whole file
+ * @param blocks number of blocks
+ * @author hayne
+ */
+public record StripeManifest(int blockBytes, long length, int blocks) {
+
+  private static final int MAGIC = 0x53545250; // "STRP"
+  private static final int BYTES = 4 + 4 + 8 + 4;
+  private static final String SEPARATOR = ErasureManifest.SEPARATOR + "blk";
+
+  /**
+   * Creates the manifest of a file split into blocks of 'blockBytes'.
+   *
+   * @param blockBytes size of each block
+   * @param length of the file
+   * @return the manifest
+   */
+  public static StripeManifest of(int blockBytes, long length) {
+    int blocks = (int) ((length + blockBytes - 1)/blockBytes);
+    return new StripeManifest(blockBytes, length, blocks);
+  }
+
+  public static String blockName(String filename, int block) {
+    return filename + SEPARATOR + block;
+  }
+
+  /**
+   * Returns the index of a block from its name.
+   *
+   * @param name of a stored file
+   * @return index of the block, -1 if the name isn't a block's
+   */
+  public static int blockIndex(String name) {
+    int start = name.lastIndexOf(SEPARATOR) + SEPARATOR.length();
+    if (start < SEPARATOR.length() || start == name.length() ||
+        (name.charAt(start) == '0' && start + 1 < name.length())) {
+      return -1;
+    }
+    long block = 0;
+    for (int i = start; i < name.length(); ++i) {
+      char c = name.charAt(i);
+      if (c < '0' || c > '9') {
+        return -1;
+      }
+      block = 10*block + (c - '0');
+      if (block > Integer.MAX_VALUE) {
+        return -1;
+      }
+    }
+    return (int) block;
+  }
+
+  /**
+   * Returns the name of the file a block belongs to.
+   *
+   * @param name of a block
+   * @return name of the striped file
+   */
+  public static String baseName(String name) {
+    return name.substring(0, name.lastIndexOf(SEPARATOR));
+  }
+
+  /**
+   * Reads a manifest from the content of a file.
+   *
+   * @param content of a stored file, may be null
+   * @return the manifest, null if the content isn't one
+   */
+  public static StripeManifest parse(ByteBuffer content) {
+    if (content == null || content.remaining() != BYTES) {
+      return null;
+    }
+    ByteBuffer buffer = content.duplicate();
+    if (buffer.getInt() != MAGIC) {
+      return null;
+    }
+    return new StripeManifest(buffer.getInt(), buffer.getLong(),
+        buffer.getInt());
+  }
+
+  public static StripeManifest parse(byte[] content) {
+    return content == null ? null : parse(ByteBuffer.wrap(content));
+  }
+
+  public byte[] toBytes() {
+    return ByteBuffer.allocate(BYTES)
+                     .putInt(MAGIC)
+                     .putInt(blockBytes)
+                     .putLong(length)
+                     .putInt(blocks)
+                     .array();
+  }
+
+  /**
+   * Returns the size of a block, which is blockBytes for every block but
+   * the last.
+   *
+   * @param block index of the block
+   * @return bytes in the block
+   */
+  public int blockLength(int block) {
+    return (int) Math.min(blockBytes, length - (long) block*blockBytes);
+  }
+}
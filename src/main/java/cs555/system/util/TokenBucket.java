@@ -0,0 +1,62 @@
+package cs555.system.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket used to limit the rate of background work, in bytes per
+ * second. Tokens refill continuously up to the bucket's capacity. A request
+ * larger than the available tokens drives the bucket into debt, and the caller
+ * sleeps until the debt has been repaid, so even requests larger than the
+ * capacity are eventually allowed through at the configured rate.
+ *
+ * @author hayne
+ */
+public class TokenBucket {
+
+  private final long rate;
+  private final long capacity;
+  private double tokens;
+  private long lastRefill;
+
+  /**
+   * Default constructor.
+   *
+   * @param rate tokens added per second, zero or less for no limit
+   * @param capacity most tokens the bucket can hold
+   */
+  public TokenBucket(long rate, long capacity) {
+    this.rate = rate;
+    this.capacity = capacity;
+    this.tokens = capacity;
+    this.lastRefill = System.nanoTime();
+  }
+
+  /**
+   * Takes tokens from the bucket, sleeping if there aren't enough.
+   *
+   * @param amount number of tokens to take
+   * @return nanoseconds spent waiting
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public long acquire(long amount) throws InterruptedException {
+    if (rate <= 0) {
+      return 0;
+    }
+    long waitNanos;
+    synchronized(this) {
+      refill();
+      tokens -= amount;
+      waitNanos = tokens < 0 ? (long) (-tokens*1_000_000_000L/rate) : 0;
+    }
+    if (waitNanos > 0) {
+      TimeUnit.NANOSECONDS.sleep(waitNanos);
+    }
+    return waitNanos;
+  }
+
+  private void refill() {
+    long now = System.nanoTime();
+    tokens = Math.min(capacity, tokens + (now - lastRefill)*rate/1e9);
+    lastRefill = now;
+  }
+}
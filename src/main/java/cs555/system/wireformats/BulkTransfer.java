@@ -0,0 +1,126 @@
+package cs555.system.wireformats;
+
+import cs555.system.util.MarshallHelper;
+import cs555.system.util.PeerInformation;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Carries many files from one peer to another in a single message. A manifest
+ * of filenames and lengths is written first, followed by the contents of
+ * every file in manifest order. The receiver of a BULK_TRANSFER answers with a
+ * MIGRATE_ACK naming each file it now holds. A REPLICATE carries copies of
+ * files to the owner's leaf neighbors, and a ROUTE_CACHE carries a copy of a
+ * popular file to a peer on the route toward it. Neither is answered.
+ *
+ * @author hayne
+ */
+public class BulkTransfer implements Event {
+
+  private final byte type;
+  private final PeerInformation sender;
+  private final List<String> filenames;
+  private final List<byte[]> contents;
+
+  public BulkTransfer(PeerInformation sender) {
+    this(Protocol.BULK_TRANSFER, sender);
+  }
+
+  public BulkTransfer(byte type, PeerInformation sender) {
+    this.type = type;
+    this.sender = sender;
+    this.filenames = new ArrayList<>();
+    this.contents = new ArrayList<>();
+  }
+
+  public BulkTransfer(byte[] marshalledBytes) throws IOException {
+    ByteArrayInputStream bin = new ByteArrayInputStream(marshalledBytes);
+    DataInputStream din = new DataInputStream(bin);
+
+    type = din.readByte();
+
+    sender = MarshallHelper.unmarshallPeerInformation(din);
+
+    int size = din.readInt();
+    filenames = new ArrayList<>(size);
+    int[] lengths = new int[size];
+    for (int i = 0; i < size; ++i) {
+      int len = din.readInt();
+      byte[] filenameBytes = new byte[len];
+      din.readFully(filenameBytes);
+      filenames.add(new String(filenameBytes));
+      lengths[i] = din.readInt();
+    }
+
+    contents = new ArrayList<>(size);
+    for (int i = 0; i < size; ++i) {
+      byte[] content = new byte[lengths[i]];
+      din.readFully(content);
+      contents.add(content);
+    }
+
+    din.close();
+    bin.close();
+  }
+
+  /**
+   * Adds a file to the transfer.
+   *
+   * @param filename name of the file
+   * @param content content of the file
+   */
+  public void addFile(String filename, byte[] content) {
+    filenames.add(filename);
+    contents.add(content);
+  }
+
+  public PeerInformation getSender() {
+    return sender;
+  }
+
+  public List<String> getFilenames() {
+    return filenames;
+  }
+
+  public List<byte[]> getContents() {
+    return contents;
+  }
+
+  public int size() {
+    return filenames.size();
+  }
+
+  @Override
+  public byte getType() {
+    return type;
+  }
+
+  @Override
+  public byte[] getBytes() throws IOException {
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    DataOutputStream dout = new DataOutputStream(bout);
+
+    dout.write(type);
+
+    MarshallHelper.marshallPeerInformation(sender, dout);
+
+    dout.writeInt(filenames.size());
+    for (int i = 0; i < filenames.size(); ++i) {
+      byte[] filenameBytes = filenames.get(i).getBytes();
+      dout.writeInt(filenameBytes.length);
+      dout.write(filenameBytes);
+      dout.writeInt(contents.get(i).length);
+    }
+
+    for (byte[] content : contents) {
+      dout.write(content);
+    }
+
+    byte[] marshalledBytes = bout.toByteArray();
+    bout.close();
+    dout.close();
+    return marshalledBytes;
+  }
+}
@@ -47,6 +47,7 @@ public class EventFactory {
       case Protocol.DEREGISTER:
       case Protocol.SELECT_RESPONSE:
       case Protocol.LEAVE:
+      case Protocol.KEY_RANGE_REQUEST:
         return new PeerMessage(marshalledBytes);
 
       case Protocol.ID_COLLISION:
@@ -56,6 +57,8 @@ public class EventFactory {
       case Protocol.DENY_STORAGE:
       case Protocol.WRITE_FAIL:
       case Protocol.WRITE_SUCCESS:
+      case Protocol.FRAGMENT_PRESENT:
+      case Protocol.FRAGMENT_MISSING:
         return new GeneralMessage(marshalledBytes);
 
       case Protocol.SPECIAL_JOIN:
@@ -71,11 +74,32 @@ public class EventFactory {
         return new RelayFile(marshalledBytes);
 
       case Protocol.SERVE_FILE:
+      case Protocol.SERVE_HEDGE:
         return new ServeFile(marshalledBytes);
 
       case Protocol.REPLACE_LEAF:
         return new ReplaceLeaf(marshalledBytes);
 
+      case Protocol.PING:
+      case Protocol.PONG:
+        return new PingMessage(marshalledBytes);
+
+      case Protocol.ROW_REQUEST:
+      case Protocol.ROW_RESPONSE:
+        return new RoutingRowMessage(marshalledBytes);
+
+      case Protocol.MIGRATE_ACCEPT:
+      case Protocol.MIGRATE_ACK:
+      case Protocol.REPLICA_DROP:
+      case Protocol.CACHE_INVALIDATE:
+        return new MigrationMessage(marshalledBytes);
+
+      case Protocol.BULK_TRANSFER:
+      case Protocol.REPLICATE:
+      case Protocol.HOT_REPLICATE:
+      case Protocol.ROUTE_CACHE:
+        return new BulkTransfer(marshalledBytes);
+
       default:
         logger.error("Event could not be created. " + marshalledBytes[0]);
         return null;
@@ -0,0 +1,88 @@
+package cs555.system.wireformats;
+
+import cs555.system.util.MarshallHelper;
+import cs555.system.util.PeerInformation;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Carries a peer and a list of filenames between peers during file migration.
+ * A MIGRATE_ACCEPT is sent by the owner of a key back to the peer which looked
+ * it up, naming the files it will take. A MIGRATE_ACK is sent by the receiver
+ * of a BulkTransfer, naming the files it has stored. A REPLICA_DROP is sent by
+ * an owner to its leaf neighbors, naming replicas they should delete, and a
+ * CACHE_INVALIDATE to the peers it pushed route cache copies to.
+ *
+ * @author hayne
+ */
+public class MigrationMessage implements Event {
+
+  private final byte type;
+  private final PeerInformation peer;
+  private final List<String> filenames;
+
+  public MigrationMessage(byte type, PeerInformation peer,
+      List<String> filenames) {
+    this.type = type;
+    this.peer = peer;
+    this.filenames = filenames;
+  }
+
+  public MigrationMessage(byte[] marshalledBytes) throws IOException {
+    ByteArrayInputStream bin = new ByteArrayInputStream(marshalledBytes);
+    DataInputStream din = new DataInputStream(bin);
+
+    type = din.readByte();
+
+    peer = MarshallHelper.unmarshallPeerInformation(din);
+
+    int size = din.readInt();
+    filenames = new ArrayList<>(size);
+    for (int i = 0; i < size; ++i) {
+      int len = din.readInt();
+      byte[] filenameBytes = new byte[len];
+      din.readFully(filenameBytes);
+      filenames.add(new String(filenameBytes));
+    }
+
+    din.close();
+    bin.close();
+  }
+
+  public PeerInformation getPeer() {
+    return peer;
+  }
+
+  public List<String> getFilenames() {
+    return filenames;
+  }
+
+  @Override
+  public byte getType() {
+    return type;
+  }
+
+  @Override
+  public byte[] getBytes() throws IOException {
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    DataOutputStream dout = new DataOutputStream(bout);
+
+    dout.write(type);
+
+    MarshallHelper.marshallPeerInformation(peer, dout);
+
+    dout.writeInt(filenames.size());
+    for (String filename : filenames) {
+      byte[] filenameBytes = filename.getBytes();
+      dout.writeInt(filenameBytes.length);
+      dout.write(filenameBytes);
+    }
+
+    byte[] marshalledBytes = bout.toByteArray();
+    bout.close();
+    dout.close();
+    return marshalledBytes;
+  }
+}
@@ -0,0 +1,80 @@
+package cs555.system.wireformats;
+
+import cs555.system.util.MarshallHelper;
+import cs555.system.util.PeerInformation;
+
+import java.io.*;
+
+/**
+ * Lightweight message used to measure the round-trip time between two peers.
+ * A PING carries the sender and the time it was sent. The receiver answers
+ * with a PONG carrying itself and the original timestamp, so the sender can
+ * compute the round-trip time against its own clock.
+ *
+ * @author hayne
+ */
+public class PingMessage implements Event {
+
+  private final byte type;
+  private final PeerInformation peer;
+  private final long timestamp;
+
+  /**
+   * Default constructor.
+   *
+   * @param type PING or PONG
+   * @param peer sender of the message
+   * @param timestamp System.nanoTime() at the peer which sent the PING
+   */
+  public PingMessage(byte type, PeerInformation peer, long timestamp) {
+    this.type = type;
+    this.peer = peer;
+    this.timestamp = timestamp;
+  }
+
+  /**
+   * Constructor which unmarshalls bytes to fill fields.
+   *
+   * @param marshalledBytes byte[] to be unmarshalled
+   * @throws IOException if streams cannot be read from
+   */
+  public PingMessage(byte[] marshalledBytes) throws IOException {
+    ByteArrayInputStream bin = new ByteArrayInputStream(marshalledBytes);
+    DataInputStream din = new DataInputStream(bin);
+
+    type = din.readByte();
+    peer = MarshallHelper.unmarshallPeerInformation(din);
+    timestamp = din.readLong();
+
+    bin.close();
+    din.close();
+  }
+
+  public PeerInformation getPeer() {
+    return peer;
+  }
+
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  @Override
+  public byte getType() {
+    return type;
+  }
+
+  @Override
+  public byte[] getBytes() throws IOException {
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    DataOutputStream dout = new DataOutputStream(bout);
+
+    dout.write(type);
+    MarshallHelper.marshallPeerInformation(peer, dout);
+    dout.writeLong(timestamp);
+
+    byte[] returnable = bout.toByteArray();
+    bout.close();
+    dout.close();
+    return returnable;
+  }
+}
@@ -24,4 +24,20 @@ public interface Protocol {
   byte WRITE_FAIL = 14;
   byte SERVE_FILE = 15;
   byte REPLACE_LEAF = 16;
+  byte PING = 17;
+  byte PONG = 18;
+  byte ROW_REQUEST = 19;
+  byte ROW_RESPONSE = 20;
+  byte MIGRATE_ACCEPT = 21;
+  byte BULK_TRANSFER = 22;
+  byte MIGRATE_ACK = 23;
+  byte KEY_RANGE_REQUEST = 24;
+  byte REPLICATE = 25;
+  byte REPLICA_DROP = 26;
+  byte SERVE_HEDGE = 27;
+  byte ROUTE_CACHE = 28;
+  byte CACHE_INVALIDATE = 29;
+  byte FRAGMENT_PRESENT = 30;
+  byte FRAGMENT_MISSING = 31;
+  byte HOT_REPLICATE = 32;
 }
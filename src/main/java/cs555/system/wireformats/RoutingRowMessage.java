@@ -0,0 +1,95 @@
+package cs555.system.wireformats;
+
+import cs555.system.util.MarshallHelper;
+import cs555.system.util.PeerInformation;
+
+import java.io.*;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Used during routing table maintenance. A ROW_REQUEST asks a peer for the
+ * entries in one row of its routing table, and the ROW_RESPONSE carries them
+ * back. Peers sharing a prefix of length 'row' with us hold row entries which
+ * are valid for our own row too. A request for row LEAF_SET asks for the
+ * peer's leaf set instead, which a peer rejoining from a snapshot uses to
+ * find neighbors that joined while it was away.
+ *
+ * @author hayne
+ */
+public class RoutingRowMessage implements Event {
+
+  public static final int LEAF_SET = -1;
+
+  private final byte type;
+  private final PeerInformation peer;
+  private final int row;
+  private final Set<PeerInformation> entries;
+
+  public RoutingRowMessage(byte type, PeerInformation peer, int row,
+      Set<PeerInformation> entries) {
+    this.type = type;
+    this.peer = peer;
+    this.row = row;
+    this.entries = entries;
+  }
+
+  public RoutingRowMessage(byte[] marshalledBytes) throws IOException {
+    ByteArrayInputStream bin = new ByteArrayInputStream(marshalledBytes);
+    DataInputStream din = new DataInputStream(bin);
+
+    type = din.readByte();
+
+    peer = MarshallHelper.unmarshallPeerInformation(din);
+
+    row = din.readByte();
+
+    int size = din.readInt();
+    entries = new HashSet<>();
+    for (int i = 0; i < size; ++i) {
+      entries.add(MarshallHelper.unmarshallPeerInformation(din));
+    }
+
+    din.close();
+    bin.close();
+  }
+
+  public PeerInformation getPeer() {
+    return peer;
+  }
+
+  public int getRow() {
+    return row;
+  }
+
+  public Set<PeerInformation> getEntries() {
+    return entries;
+  }
+
+  @Override
+  public byte getType() {
+    return type;
+  }
+
+  @Override
+  public byte[] getBytes() throws IOException {
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    DataOutputStream dout = new DataOutputStream(bout);
+
+    dout.write(type);
+
+    MarshallHelper.marshallPeerInformation(peer, dout);
+
+    dout.writeByte(row);
+
+    dout.writeInt(entries.size());
+    for (PeerInformation entry : entries) {
+      MarshallHelper.marshallPeerInformation(entry, dout);
+    }
+
+    byte[] marshalledBytes = bout.toByteArray();
+    bout.close();
+    dout.close();
+    return marshalledBytes;
+  }
+}
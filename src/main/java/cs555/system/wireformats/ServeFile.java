@@ -1,16 +1,58 @@
 package cs555.system.wireformats;
 
 import java.io.*;
-
+import java.nio.ByteBuffer;
+
+/**
+ * Carries a retrieved file to the StoreData. A ServeFile's marshalled bytes
+ * are kept once made, so one ServeFile can be sent to many requesters while
+ * only being encoded once.
+ *
+ * @author hayne
+ */
 public class ServeFile implements Event {
   private final byte type;
   private final String filename;
-  private final byte[] content;
+  private byte[] content;
+  private final ByteBuffer buffer;
+  private byte[] marshalled;
 
   public ServeFile(String filename, byte[] content) {
-    this.type = Protocol.SERVE_FILE;
+    this(Protocol.SERVE_FILE, filename, content);
+  }
+
+  /**
+   * Constructor for answering a particular kind of request. A SERVE_HEDGE
+   * answers a hedged RETRIEVE, so the StoreData can tell which of its
+   * requests won.
+   *
+   * @param type SERVE_FILE or SERVE_HEDGE
+   * @param filename name of the file
+   * @param content content of the file, null if it couldn't be read
+   */
+  public ServeFile(byte type, String filename, byte[] content) {
+    this.type = type;
     this.filename = filename;
     this.content = content;
+    this.buffer = null;
+  }
+
+  /**
+   * Constructor used to serve a file from a memory mapping. The content is
+   * copied once, directly from the buffer into the marshalled message.
+   *
+   * @param filename name of the file
+   * @param buffer content of the file, null if it couldn't be read
+   */
+  public ServeFile(String filename, ByteBuffer buffer) {
+    this(Protocol.SERVE_FILE, filename, buffer);
+  }
+
+  public ServeFile(byte type, String filename, ByteBuffer buffer) {
+    this.type = type;
+    this.filename = filename;
+    this.content = null;
+    this.buffer = buffer;
   }
 
   public ServeFile(byte[] marshalledBytes) throws IOException {
@@ -32,6 +74,8 @@ public class ServeFile implements Event {
       din.readFully(content);
     }
 
+    buffer = null;
+
     din.close();
     bin.close();
   }
@@ -40,7 +84,15 @@ public class ServeFile implements Event {
     return filename;
   }
 
-  public byte[] getContent() {
+  public boolean hasContent() {
+    return content != null || buffer != null;
+  }
+
+  public synchronized byte[] getContent() {
+    if (content == null && buffer != null) {
+      content = new byte[buffer.remaining()];
+      buffer.duplicate().get(content);
+    }
     return content;
   }
 
@@ -50,7 +102,14 @@ public class ServeFile implements Event {
   }
 
   @Override
-  public byte[] getBytes() throws IOException {
+  public synchronized byte[] getBytes() throws IOException {
+    if (marshalled == null) {
+      marshalled = buffer != null ? marshallBuffer() : marshall();
+    }
+    return marshalled;
+  }
+
+  private byte[] marshall() throws IOException {
     ByteArrayOutputStream bout = new ByteArrayOutputStream();
     DataOutputStream dout = new DataOutputStream(bout);
 
@@ -72,4 +131,24 @@ public class ServeFile implements Event {
     bout.close();
     return marshalledBytes;
   }
+
+  /**
+   * Marshalls the message into an array of exactly the right size, reading
+   * the content straight out of the buffer.
+   *
+   * @return marshalled bytes
+   */
+  private byte[] marshallBuffer() {
+    byte[] filenameBytes = filename.getBytes();
+    int contentLength = buffer.remaining();
+    byte[] marshalledBytes =
+        new byte[1 + 4 + filenameBytes.length + 4 + contentLength];
+    ByteBuffer.wrap(marshalledBytes)
+              .put(type)
+              .putInt(filenameBytes.length)
+              .put(filenameBytes)
+              .putInt(contentLength)
+              .put(buffer.duplicate());
+    return marshalledBytes;
+  }
 }
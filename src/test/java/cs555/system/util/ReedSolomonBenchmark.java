@@ -0,0 +1,97 @@
+package cs555.system.util;
+
+import java.util.Random;
+
+/**
+ * Measures the encode and decode throughput of the ReedSolomon code, in the
+ * spirit of a JMH benchmark: each case is warmed up until the JIT has
+ * compiled the coding loops, then timed over several measured iterations,
+ * and the mean and best throughput are reported. Decoding is measured
+ * with the first m data shards lost, which is the most work a decode does.
+ * <p>
+ * Usage: ReedSolomonBenchmark [k] [m] [bytes]
+ *
+ * @author hayne
+ */
+public class ReedSolomonBenchmark {
+
+  private static final int WARMUP_ITERATIONS = 5;
+  private static final int MEASURED_ITERATIONS = 10;
+  private static final long ITERATION_NANOS = 500_000_000L;
+  private static long sink;
+
+  /**
+   * One operation to be timed.
+   */
+  private interface Operation {
+    void run();
+  }
+
+  public static void main(String[] args) {
+    int k = args.length > 0 ? Integer.parseInt(args[0]) : 6;
+    int m = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+    int bytes = args.length > 2 ? Integer.parseInt(args[2]) : 1 << 20;
+
+    ReedSolomon code = new ReedSolomon(k, m);
+    byte[] content = new byte[bytes];
+    new Random(42).nextBytes(content);
+    byte[][] encoded = code.encode(content);
+    int shardBytes = code.shardBytes(bytes);
+
+    System.out.printf("Reed-Solomon %d + %d, %d bytes per operation%n", k, m,
+        bytes);
+    measure("encode", bytes, () -> sink += code.encode(content)[k][0]);
+    measure("decode", bytes, () -> {
+      byte[][] shards = encoded.clone();
+      for (int i = 0; i < Math.min(k, m); ++i) {
+        shards[i] = null;
+      }
+      code.reconstruct(shards, shardBytes);
+      sink += shards[0][0];
+    });
+    if (sink == 42) {
+      System.out.println(); // keeps the results from being optimized away
+    }
+  }
+
+  /**
+   * Warms up, then times, an operation.
+   *
+   * @param name of the case
+   * @param bytes processed by each operation
+   * @param operation to time
+   */
+  private static void measure(String name, int bytes, Operation operation) {
+    for (int i = 0; i < WARMUP_ITERATIONS; ++i) {
+      iterate(operation);
+    }
+    double total = 0;
+    double best = 0;
+    for (int i = 0; i < MEASURED_ITERATIONS; ++i) {
+      long[] result = iterate(operation);
+      double throughput = (double) result[0]*bytes/result[1]*1e9/(1 << 20);
+      total += throughput;
+      best = Math.max(best, throughput);
+    }
+    System.out.printf("%-8s : %8.1f MiB/s mean, %8.1f MiB/s best%n", name,
+        total/MEASURED_ITERATIONS, best);
+  }
+
+  /**
+   * Runs an operation repeatedly for about ITERATION_NANOS.
+   *
+   * @param operation to run
+   * @return operations run, and nanoseconds taken
+   */
+  private static long[] iterate(Operation operation) {
+    long start = System.nanoTime();
+    long operations = 0;
+    long elapsed;
+    do {
+      operation.run();
+      ++operations;
+      elapsed = System.nanoTime() - start;
+    } while (elapsed < ITERATION_NANOS);
+    return new long[]{ operations, elapsed };
+  }
+}
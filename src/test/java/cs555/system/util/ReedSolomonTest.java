@@ -0,0 +1,141 @@
+package cs555.system.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that a ReedSolomon code rebuilds its content from any k of its
+ * k + m shards, and that erasure coded fragments are named and placed
+ * unambiguously.
+ *
+ * @author hayne
+ */
+class ReedSolomonTest {
+
+  private static byte[] randomContent(Random random, int length) {
+    byte[] content = new byte[length];
+    random.nextBytes(content);
+    return content;
+  }
+
+  private static byte[][] copy(byte[][] shards) {
+    byte[][] copy = new byte[shards.length][];
+    for (int i = 0; i < shards.length; ++i) {
+      copy[i] = shards[i].clone();
+    }
+    return copy;
+  }
+
+  /**
+   * Erases every possible set of m shards of a 4 + 3 code in turn, and
+   * checks that each is rebuilt exactly.
+   */
+  @Test
+  void reconstructsAfterErasingAnyM() {
+    int k = 4;
+    int m = 3;
+    ReedSolomon code = new ReedSolomon(k, m);
+    byte[] content = randomContent(new Random(1), 1001);
+    byte[][] encoded = code.encode(content);
+    int length = code.shardBytes(content.length);
+    int erasures = 0;
+    for (int mask = 0; mask < 1 << (k + m); ++mask) {
+      if (Integer.bitCount(mask) != m) {
+        continue;
+      }
+      byte[][] shards = copy(encoded);
+      for (int i = 0; i < shards.length; ++i) {
+        if ((mask & 1 << i) != 0) {
+          shards[i] = null;
+        }
+      }
+      assertTrue(code.reconstruct(shards, length));
+      for (int i = 0; i < shards.length; ++i) {
+        assertArrayEquals(encoded[i], shards[i], "shard " + i);
+      }
+      ++erasures;
+    }
+    assertEquals(35, erasures);
+  }
+
+  /**
+   * Erases m random shards of codes of random sizes and rebuilds the
+   * content through the manifest, including lengths which leave the last
+   * data fragment padded.
+   */
+  @Test
+  void decodesRandomCodes() {
+    Random random = new Random(42);
+    for (int trial = 0; trial < 200; ++trial) {
+      int k = 1 + random.nextInt(12);
+      int m = random.nextInt(6);
+      byte[] content = randomContent(random, random.nextInt(5000));
+      ErasureManifest manifest = new ErasureManifest(k, m, content.length);
+      byte[][] fragments = manifest.getCode().encode(content);
+      for (int erased = 0; erased < m; ) {
+        int i = random.nextInt(k + m);
+        if (fragments[i] != null) {
+          fragments[i] = null;
+          ++erased;
+        }
+      }
+      assertArrayEquals(content, manifest.decode(fragments),
+          k + " + " + m + ", " + content.length + " bytes");
+    }
+  }
+
+  @Test
+  void failsWithFewerThanK() {
+    ReedSolomon code = new ReedSolomon(5, 2);
+    byte[] content = randomContent(new Random(7), 500);
+    byte[][] shards = code.encode(content);
+    shards[0] = null;
+    shards[3] = null;
+    shards[6] = null;
+    assertFalse(code.reconstruct(shards, code.shardBytes(content.length)));
+  }
+
+  @Test
+  void rejectsTooManyShards() {
+    assertThrows(IllegalArgumentException.class,
+        () -> new ReedSolomon(200, 57));
+    assertThrows(IllegalArgumentException.class,
+        () -> new ReedSolomon(0, 2));
+  }
+
+  @Test
+  void parsesOnlyFragmentNames() {
+    String name = ErasureManifest.fragmentName("backup.tar", 7);
+    assertEquals(7, ErasureManifest.fragmentIndex(name));
+    assertEquals("backup.tar", ErasureManifest.baseName(name));
+    assertEquals(255, ErasureManifest.fragmentIndex("a#255"));
+    assertEquals(-1, ErasureManifest.fragmentIndex("backup.frag2"));
+    assertEquals(-1, ErasureManifest.fragmentIndex("a#256"));
+    assertEquals(-1, ErasureManifest.fragmentIndex("a#2559"));
+    assertEquals(-1, ErasureManifest.fragmentIndex("a#03"));
+    assertEquals(-1, ErasureManifest.fragmentIndex("a#"));
+    assertEquals(-1, ErasureManifest.fragmentIndex("a#1x"));
+  }
+
+  @Test
+  void placesFragmentsApartFromTheManifest() {
+    String key = "6f92";
+    for (int i = 0; i < 16; ++i) {
+      assertNotEquals(key, ErasureManifest.fragmentKey(key, i));
+      for (int j = 0; j < i; ++j) {
+        assertNotEquals(ErasureManifest.fragmentKey(key, j),
+            ErasureManifest.fragmentKey(key, i));
+      }
+    }
+  }
+
+  @Test
+  void roundTripsManifests() {
+    ErasureManifest manifest = new ErasureManifest(6, 3, 1L << 33);
+    assertEquals(manifest, ErasureManifest.parse(manifest.toBytes()));
+    assertNull(ErasureManifest.parse(new byte[20]));
+  }
+}